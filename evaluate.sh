@@ -17,10 +17,18 @@
 
 set -eo pipefail
 
+COLD=false
+if [ "$1" == "--cold" ]; then
+  COLD=true
+  shift
+fi
+
 if [ -z "$1" ]
   then
-    echo "Usage: evaluate.sh <fork name> (<fork name 2> ...)"
+    echo "Usage: evaluate.sh [--cold] <fork name> (<fork name 2> ...)"
     echo " for each fork, there must be a 'calculate_average_<fork name>.sh' script and an optional 'prepare_<fork name>.sh'."
+    echo " --cold: additionally run each fork with the measurements file evicted from the page cache before each run,"
+    echo "         reporting cold and warm timings side by side (Linux only)"
     exit 1
 fi
 
@@ -194,6 +202,22 @@ for fork in "$@"; do
     echo ""
     continue
   fi
+
+  # Evict the measurements file from the page cache before each run, no root required
+  if [ "$COLD" == "true" ]; then
+    EVICT="java --enable-preview --enable-native-access=ALL-UNNAMED --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.engine.PageCache evict $MEASUREMENTS_FILE"
+    COLD_HYPERFINE_OPTS="--warmup 0 --runs $RUNS --export-json $fork-$filetimestamp-cold-timing.json --output ./$fork-$filetimestamp-cold.out"
+    if [ "$(uname -s)" == "Linux" ]; then
+      numactl --physcpubind=0-7 hyperfine $COLD_HYPERFINE_OPTS --prepare "$EVICT" "$TIMEOUT ./calculate_average_$fork.sh 2>&1"
+    else # MacOS
+      echo -e "${BOLD_YELLOW}WARNING${RESET} --cold is only supported on Linux, skipping cold runs"
+    fi
+    if [ $? -ne 0 ]; then
+      failed+=("$fork")
+      echo ""
+      continue
+    fi
+  fi
 done
 set -e
 
@@ -220,9 +244,30 @@ for fork in "$@"; do
   fi
 
   echo -e "  ${color}$fork${RESET}: trimmed mean ${BOLD_WHITE}$trimmed_mean${RESET}, raw times ${BOLD_WHITE}$raw_times${RESET}"
+  if [ -f "$fork-$filetimestamp-cold-timing.json" ]; then
+    cold_trimmed_mean=$(jq -r '.results[0].times | sort_by(.|tonumber) | .[1:-1] | add / length' $fork-$filetimestamp-cold-timing.json)
+    cold_raw_times=$(jq -r '.results[0].times | join(",")' $fork-$filetimestamp-cold-timing.json)
+    echo -e "  ${color}$fork${RESET} (cold): trimmed mean ${BOLD_WHITE}$cold_trimmed_mean${RESET}, raw times ${BOLD_WHITE}$cold_raw_times${RESET}"
+  fi
 done
 echo ""
 
+if [ "$COLD" == "true" ]; then
+  echo -e "${BOLD_WHITE}Cold vs. warm${RESET}"
+  echo ""
+  echo "| Implementation | Warm (s) | Cold (s) | Cold / warm |"
+  echo "|----------------|----------|----------|-------------|"
+  for fork in "$@"; do
+    if [[ " ${failed[@]} " =~ " ${fork} " ]] || [ ! -f "$fork-$filetimestamp-cold-timing.json" ]; then
+      continue
+    fi
+    trimmed_mean=$(jq -r '.results[0].times | sort_by(.|tonumber) | .[1:-1] | add / length' $fork-$filetimestamp-timing.json)
+    cold_trimmed_mean=$(jq -r '.results[0].times | sort_by(.|tonumber) | .[1:-1] | add / length' $fork-$filetimestamp-cold-timing.json)
+    printf "| %s | %.3f | %.3f | %.2f |\n" $fork $trimmed_mean $cold_trimmed_mean $(echo "$cold_trimmed_mean / $trimmed_mean" | bc -l)
+  done
+  echo ""
+fi
+
 ## Leaderboard - prints the leaderboard in Markdown table format
 echo -e "${BOLD_WHITE}Leaderboard${RESET}"
 
@@ -318,6 +363,12 @@ for fork in "$@"; do
       rm $fork-$filetimestamp-timing.json
   fi
 
+  if [ -f "$fork-$filetimestamp-cold-timing.json" ]; then
+      cat $fork-$filetimestamp-cold-timing.json >> $fork-$filetimestamp-cold.out
+      rm $fork-$filetimestamp-cold-timing.json
+      echo "  $fork-$filetimestamp-cold.out"
+  fi
+
   if [ -f "$fork-$filetimestamp.out" ]; then
     echo "  $fork-$filetimestamp.out"
   fi
@@ -0,0 +1,281 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.FastExitLauncher;
+import dev.morling.onebrc.engine.IoMode;
+import dev.morling.onebrc.engine.MapOption;
+import dev.morling.onebrc.engine.ParserKind;
+import dev.morling.onebrc.engine.PrefetchMode;
+import dev.morling.onebrc.engine.StationStats;
+
+/**
+ * Command line entry point of the reusable {@link AggregationEngine}. Reads {@code ./measurements.txt} by default, or
+ * all the files given as arguments in one run; file names may contain glob patterns such as
+ * {@code 'data/region-*.txt'}. Standard input is read if {@code -} is given as the input, a single file ending in
+ * {@code .gz} is inflated, in parallel if it was written with {@code BlockGzipOutputStream}, and a single
+ * {@code http://} or {@code https://} URL is fetched with concurrent range requests. Options:
+ * <ul>
+ * <li>{@code --parser=<kind>}: the {@link ParserKind} to use instead of selecting one automatically</li>
+ * <li>{@code --no-unsafe}: only use kernels which do not depend on {@code sun.misc.Unsafe}</li>
+ * <li>{@code --threads=<n>}: the number of workers, by default one per available processor</li>
+ * <li>{@code --segment-kb=<n>}: the size of the segments claimed by the workers, by default
+ * {@link AggregationEngine#DEFAULT_SEGMENT_SIZE} bytes</li>
+ * <li>{@code --watch}: keep running on a single spool directory, or a glob pattern of files in one, aggregating
+ * each file as it lands there and printing the updated result</li>
+ * <li>{@code --checkpoint=<file>}: aggregate a single growing file incrementally, only parsing what was appended
+ * since the state saved in the given checkpoint file</li>
+ * <li>{@code --window-mb=<n>}: map input files through a sliding window of about {@code n} MB instead of as a whole,
+ * bounding the mapped memory</li>
+ * <li>{@code --map=<option>,...}: map input files with {@code mmap(2)} and the given {@link MapOption}s, e.g.
+ * {@code --map=populate,sequential}</li>
+ * <li>{@code --io=<mode>}: the {@link IoMode} for reading input files, e.g. {@code --io=direct} to bypass the page
+ * cache, or {@code --io=auto} to pick one from the input size and page cache residency, logging the chosen mode and
+ * the reason to standard error</li>
+ * <li>{@code --queue-depth=<n>}: the number of outstanding reads with {@code --io=async}, or of concurrent range
+ * requests for a URL</li>
+ * <li>{@code --checksums=<file>}: verify the input files against the CRC32C checksums listed in the given file, one
+ * {@code <hex checksum> <file name>} line per file, while aggregating them</li>
+ * <li>{@code --spill-mb=<n>[,<partitions>[,<directory>]]}: spill a worker's table to disk once it takes about
+ * {@code n} MB, into the given number of partitions below the given directory, by default
+ * {@link AggregationEngine#DEFAULT_SPILL_PARTITIONS} below the temporary directory; the result is then printed one
+ * merged partition at a time</li>
+ * <li>{@code --dictionary=<file>}: preload the station names of previous runs from the given file, and add those of
+ * this run to it</li>
+ * <li>{@code --shared-table=<capacity>}: aggregate into one table for up to {@code capacity} stations shared by all
+ * workers, instead of one table per worker</li>
+ * <li>{@code --release-early}: release the pages of processed segments during the run instead of at its end</li>
+ * <li>{@code --prefetch-mb=<n>[,willneed]}: prefetch pages {@code n} MB ahead of the workers, by touching them or
+ * with {@code madvise(MADV_WILLNEED)}, printing the prefetcher's counters to standard error</li>
+ * <li>{@code --fast-exit}: run the aggregation in a worker process and return as soon as it printed the result,
+ * leaving unmapping and JVM shutdown to the worker; with {@code -Donebrc.reportTeardown=true}, the wall time and the
+ * teardown time hidden from the caller are printed to standard error, see {@link FastExitLauncher}</li>
+ * </ul>
+ */
+public class CalculateAverage_engine {
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws IOException {
+        AggregationEngine.Builder builder = AggregationEngine.builder();
+        List<String> inputs = new ArrayList<>();
+        Path checkpoint = null;
+        boolean fastExit = false;
+        boolean watch = false;
+        for (String arg : args) {
+            if (arg.startsWith("--parser=")) {
+                builder.parser(ParserKind.valueOf(arg.substring("--parser=".length())));
+            }
+            else if (arg.equals("--no-unsafe")) {
+                builder.allowUnsafe(false);
+            }
+            else if (arg.startsWith("--threads=")) {
+                builder.threads(Integer.parseInt(arg.substring("--threads=".length())));
+            }
+            else if (arg.startsWith("--segment-kb=")) {
+                builder.segmentSize(Integer.parseInt(arg.substring("--segment-kb=".length())) << 10);
+            }
+            else if (arg.equals("--watch")) {
+                watch = true;
+            }
+            else if (arg.startsWith("--checkpoint=")) {
+                checkpoint = Path.of(arg.substring("--checkpoint=".length()));
+            }
+            else if (arg.startsWith("--window-mb=")) {
+                builder.windowSize(Long.parseLong(arg.substring("--window-mb=".length())) << 20);
+            }
+            else if (arg.startsWith("--map=")) {
+                Set<MapOption> options = EnumSet.noneOf(MapOption.class);
+                for (String option : arg.substring("--map=".length()).split(",")) {
+                    options.add(MapOption.valueOf(option.toUpperCase(Locale.ROOT)));
+                }
+                builder.mapOptions(options);
+            }
+            else if (arg.startsWith("--io=")) {
+                builder.ioMode(IoMode.valueOf(arg.substring("--io=".length()).toUpperCase(Locale.ROOT)));
+            }
+            else if (arg.startsWith("--queue-depth=")) {
+                builder.queueDepth(Integer.parseInt(arg.substring("--queue-depth=".length())));
+            }
+            else if (arg.startsWith("--checksums=")) {
+                builder.checksums(readChecksums(Path.of(arg.substring("--checksums=".length()))));
+            }
+            else if (arg.startsWith("--spill-mb=")) {
+                String[] spill = arg.substring("--spill-mb=".length()).split(",", 3);
+                int partitions = spill.length > 1 ? Integer.parseInt(spill[1]) : AggregationEngine.DEFAULT_SPILL_PARTITIONS;
+                Path directory = Path.of(spill.length > 2 ? spill[2] : System.getProperty("java.io.tmpdir"));
+                builder.spill(Long.parseLong(spill[0]) << 20, partitions, directory);
+            }
+            else if (arg.startsWith("--dictionary=")) {
+                builder.dictionary(Path.of(arg.substring("--dictionary=".length())));
+            }
+            else if (arg.startsWith("--shared-table=")) {
+                builder.sharedTable(Integer.parseInt(arg.substring("--shared-table=".length())));
+            }
+            else if (arg.equals("--release-early")) {
+                builder.releaseEarly(true);
+            }
+            else if (arg.startsWith("--prefetch-mb=")) {
+                String[] prefetch = arg.substring("--prefetch-mb=".length()).split(",");
+                PrefetchMode mode = prefetch.length > 1 ? PrefetchMode.valueOf(prefetch[1].toUpperCase(Locale.ROOT)) : PrefetchMode.TOUCH;
+                builder.prefetch(Long.parseLong(prefetch[0]) << 20, mode)
+                        .prefetchListener(counters -> System.err.println("Prefetcher: " + counters));
+            }
+            else if (arg.equals("--fast-exit")) {
+                fastExit = true;
+            }
+            else if (arg.equals(FastExitLauncher.WORKER_FLAG)) {
+                // Set by the launcher in the worker process
+            }
+            else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                inputs.add(arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            inputs.add(FILE);
+        }
+
+        AggregationEngine engine = builder.build();
+        if (fastExit && FastExitLauncher.launch(args)) {
+            return;
+        }
+
+        if (watch) {
+            if (inputs.size() != 1) {
+                throw new IllegalArgumentException("Watching requires exactly one directory");
+            }
+            Path path = Path.of(inputs.get(0));
+            Path directory = Files.isDirectory(path) ? path : path.getParent() != null ? path.getParent() : Path.of(".");
+            String pattern = Files.isDirectory(path) ? "*" : path.getFileName().toString();
+            engine.watch(directory, directory.getFileSystem().getPathMatcher("glob:" + pattern), System.out::println);
+        }
+        else if (checkpoint != null) {
+            if (inputs.size() != 1) {
+                throw new IllegalArgumentException("Incremental aggregation requires exactly one input file");
+            }
+            System.out.println(engine.aggregateIncrementally(Path.of(inputs.get(0)), checkpoint));
+        }
+        else if (inputs.equals(List.of("-"))) {
+            try (var stdin = new FileInputStream(FileDescriptor.in).getChannel()) {
+                print(consumer -> engine.aggregate(stdin, consumer));
+            }
+        }
+        else if (inputs.size() == 1 && (inputs.get(0).startsWith("http://") || inputs.get(0).startsWith("https://"))) {
+            print(consumer -> engine.aggregate(URI.create(inputs.get(0)), consumer));
+        }
+        else if (inputs.size() == 1 && inputs.get(0).endsWith(".gz")) {
+            print(consumer -> engine.aggregateGzip(Path.of(inputs.get(0)), consumer));
+        }
+        else {
+            List<Path> files = new ArrayList<>();
+            for (String input : inputs) {
+                files.addAll(expand(input));
+            }
+            print(consumer -> engine.aggregate(files, consumer));
+        }
+        FastExitLauncher.finish();
+    }
+
+    // Prints the stations as the engine passes them on, in the format of a printed map, so that with spilling the
+    // result is never held in memory as a whole
+    private static void print(Aggregation aggregation) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()), 1 << 16);
+        out.write('{');
+        boolean[] first = { true };
+        try {
+            aggregation.run((name, stats) -> {
+                try {
+                    if (!first[0]) {
+                        out.write(", ");
+                    }
+                    first[0] = false;
+                    out.write(name);
+                    out.write('=');
+                    out.write(stats.toString());
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.write('}');
+        out.write(System.lineSeparator());
+        out.flush();
+    }
+
+    @FunctionalInterface
+    private interface Aggregation {
+        void run(BiConsumer<String, StationStats> consumer) throws IOException;
+    }
+
+    // Reads lines of the form "<hex checksum> <file name>", as written by the *sum tools
+    private static Map<Path, Long> readChecksums(Path file) throws IOException {
+        Map<Path, Long> checksums = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] parts = line.trim().split("\\s+", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Malformed checksum line: " + line);
+            }
+            String name = parts[1].startsWith("*") ? parts[1].substring(1) : parts[1];
+            checksums.put(Path.of(name), Long.parseLong(parts[0], 16));
+        }
+        return checksums;
+    }
+
+    // Expands a glob pattern in the file name part of the given path
+    private static List<Path> expand(String input) throws IOException {
+        Path path = Path.of(input);
+        String fileName = path.getFileName().toString();
+        if (fileName.chars().noneMatch(c -> "*?[{".indexOf(c) >= 0)) {
+            return List.of(path);
+        }
+        Path directory = path.getParent() != null ? path.getParent() : Path.of(".");
+        List<Path> files = new ArrayList<>();
+        try (var stream = Files.newDirectoryStream(directory, fileName)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+}
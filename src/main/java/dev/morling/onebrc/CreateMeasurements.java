@@ -16,14 +16,19 @@
 package dev.morling.onebrc;
 
 import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
+import dev.morling.onebrc.engine.BlockGzipOutputStream;
+
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+    private static final Path COMPRESSED_MEASUREMENT_FILE = Path.of("./measurements.txt.gz");
 
     private record WeatherStation(String id, double meanTemperature) {
         double measurement() {
@@ -35,10 +40,11 @@ public class CreateMeasurements {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length != 1 && !(args.length == 2 && args[1].equals("--gzip"))) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--gzip]");
             System.exit(1);
         }
+        boolean gzip = args.length == 2;
 
         int size = 0;
         try {
@@ -489,7 +495,10 @@ public class CreateMeasurements {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
-        try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
+        // With --gzip, write a block gzip file whose members can be inflated in parallel
+        try (BufferedWriter bw = gzip
+                ? new BufferedWriter(new OutputStreamWriter(new BlockGzipOutputStream(COMPRESSED_MEASUREMENT_FILE), StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(MEASUREMENT_FILE)) {
             for (int i = 0; i < size; i++) {
                 if (i > 0 && i % 50_000_000 == 0) {
                     System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
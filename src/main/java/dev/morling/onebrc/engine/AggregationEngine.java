@@ -0,0 +1,775 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Aggregates measurement files of the form {@code <station>;<temperature>\n} into per-station statistics, using the
+ * approach of {@code CalculateAverage_thomaswue}: the input is memory mapped and processed by one worker per core,
+ * which steal segments of {@link #DEFAULT_SEGMENT_SIZE} bytes from a shared cursor and scan each of them with three
+ * interleaved cursors. Every worker accumulates into its own hash table; the tables are merged into a sorted map at the
+ * end.
+ * <p>
+ * The line parsing kernel is pluggable, see {@link ParserKind}. By default the engine times all available kernels on a
+ * sample of the first segment and runs with the fastest one. With {@link Builder#allowUnsafe(boolean)} disabled, only
+ * kernels reading through {@link MemorySegment} are considered.
+ * <p>
+ * Instances are immutable and may be used for any number of (also concurrent) runs:
+ *
+ * <pre>
+ * SortedMap&lt;String, StationStats&gt; result = AggregationEngine.builder().build().aggregate(Path.of("measurements.txt"));
+ * </pre>
+ */
+public final class AggregationEngine {
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 21;
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+    public static final int DEFAULT_SPILL_PARTITIONS = 64;
+    // Streamed buffers must hold at least one line
+    private static final int MIN_STREAM_BUFFER_SIZE = 1 << 16;
+    private static final IoCheck NO_CHECK = () -> {
+    };
+
+    private final int threads;
+    private final int segmentSize;
+    private final long windowSize;
+    private final Set<MapOption> mapOptions;
+    private final IoMode ioMode;
+    private final int queueDepth;
+    private final boolean releaseEarly;
+    private final Map<Path, Long> checksums;
+    private final long prefetchDistance;
+    private final PrefetchMode prefetchMode;
+    private final Consumer<PrefetchCounters> prefetchListener;
+    private final long spillThreshold;
+    private final int spillPartitions;
+    private final Path spillDirectory;
+    private final Path dictionaryFile;
+    private final int sharedTableCapacity;
+    private final ParserKind parserKind;
+    private final boolean allowUnsafe;
+
+    private AggregationEngine(Builder builder) {
+        this.threads = builder.threads;
+        this.segmentSize = builder.segmentSize;
+        this.windowSize = builder.windowSize;
+        this.mapOptions = builder.mapOptions;
+        this.ioMode = builder.ioMode;
+        this.queueDepth = builder.queueDepth;
+        this.releaseEarly = builder.releaseEarly;
+        this.checksums = builder.checksums;
+        this.prefetchDistance = builder.prefetchDistance;
+        this.prefetchMode = builder.prefetchMode;
+        this.prefetchListener = builder.prefetchListener;
+        this.spillThreshold = builder.spillThreshold;
+        this.spillPartitions = builder.spillPartitions;
+        this.spillDirectory = builder.spillDirectory;
+        this.dictionaryFile = builder.dictionaryFile;
+        this.sharedTableCapacity = builder.sharedTableCapacity;
+        this.parserKind = builder.parserKind;
+        this.allowUnsafe = builder.allowUnsafe;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Aggregates the given file, returning the statistics keyed and sorted by station name.
+     */
+    public SortedMap<String, StationStats> aggregate(Path file) throws IOException {
+        return aggregate(List.of(file));
+    }
+
+    /**
+     * Aggregates all the given files in one run, returning the combined statistics. The segments of all files are
+     * claimed from one shared cursor, so that workers finishing a file steal from the next one, and the per-thread
+     * tables are merged only once.
+     */
+    public SortedMap<String, StationStats> aggregate(List<Path> files) throws IOException {
+        SortedMap<String, StationStats> result = new TreeMap<>();
+        aggregate(files, result::put);
+        return result;
+    }
+
+    /**
+     * Aggregates all the given files like {@link #aggregate(List)}, but passes the statistics to {@code consumer} in
+     * order of the station names instead of returning them. With {@link Builder#spill(long, int, Path) spilling}, the
+     * stations are passed on one merged partition at a time, so that the result is never held in memory as a whole.
+     * The consumer may be called from different threads, but never concurrently.
+     */
+    public void aggregate(List<Path> files, BiConsumer<String, StationStats> consumer) throws IOException {
+        IoMode mode = ioMode == IoMode.AUTO ? IoSelector.select(files) : ioMode;
+        if (mode == IoMode.DIRECT) {
+            try (var source = new DirectChunkSource(files, segmentSize)) {
+                aggregate(source, NO_CHECK, consumer);
+                return;
+            }
+        }
+        if (mode == IoMode.ASYNC) {
+            try (var source = new AsyncChunkSource(files, segmentSize, queueDepth, threads)) {
+                aggregate(source, NO_CHECK, consumer);
+                return;
+            }
+        }
+        if (mode == IoMode.BUFFERED) {
+            SortedMap<String, StationStats> result = new TreeMap<>();
+            for (Path file : files) {
+                try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    StationStats.mergeInto(result, aggregate(channel));
+                }
+            }
+            result.forEach(consumer);
+            return;
+        }
+        if (windowSize > 0) {
+            aggregateWindowed(files, consumer);
+            return;
+        }
+        Arena arena = Arena.ofShared();
+        try {
+            List<MemorySegment> mapped = new ArrayList<>(files.size());
+            List<Path> mappedFiles = new ArrayList<>(files.size());
+            for (Path file : files) {
+                try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long fileSize = fileChannel.size();
+                    if (fileSize > 0) {
+                        mapped.add(mapOptions.isEmpty()
+                                ? fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, arena)
+                                : NativeMapper.map(file, fileSize, mapOptions, arena));
+                        mappedFiles.add(file);
+                    }
+                    else if (!checksums.isEmpty()) {
+                        verifyChecksum(file, 0);
+                    }
+                }
+            }
+            var source = new MappedChunkSource(mapped, segmentSize, releaseEarly, !checksums.isEmpty());
+            // Verified before any station is passed on
+            IoCheck verify = () -> {
+                if (!checksums.isEmpty()) {
+                    for (int i = 0; i < mappedFiles.size(); i++) {
+                        verifyChecksum(mappedFiles.get(i), source.checksum(i));
+                    }
+                }
+            };
+            if (prefetchDistance == 0) {
+                aggregate(source, verify, consumer);
+            }
+            else {
+                Prefetcher prefetcher = source.prefetcher(prefetchDistance, prefetchMode);
+                prefetcher.start();
+                try {
+                    aggregate(source, verify, consumer);
+                }
+                finally {
+                    prefetcher.close();
+                    prefetchListener.accept(prefetcher.counters());
+                }
+            }
+        }
+        finally {
+            // Unmapping large files takes a while, see FastExitLauncher
+            FastExitLauncher.release(arena);
+        }
+    }
+
+    private void verifyChecksum(Path file, long actual) throws IOException {
+        Long expected = checksums.get(file.toAbsolutePath().normalize());
+        if (expected == null) {
+            throw new IOException("No checksum given for " + file);
+        }
+        if (expected != actual) {
+            throw new IOException(String.format("Checksum mismatch for %s: expected %08x, computed %08x", file, expected, actual));
+        }
+    }
+
+    private void aggregateWindowed(List<Path> files, BiConsumer<String, StationStats> consumer) throws IOException {
+        List<FileChannel> channels = new ArrayList<>(files.size());
+        try {
+            for (Path file : files) {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                if (channel.size() > 0) {
+                    channels.add(channel);
+                }
+                else {
+                    channel.close();
+                }
+            }
+        }
+        catch (IOException e) {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        // Windows consist of whole segments, so that a segment is always read from a single mapping
+        long window = Math.ceilDiv(windowSize, segmentSize) * segmentSize;
+        var source = new WindowedChunkSource(channels, segmentSize, window);
+        try {
+            aggregate(source, NO_CHECK, consumer);
+        }
+        finally {
+            FastExitLauncher.release(source);
+        }
+    }
+
+    /**
+     * Aggregates an append-only file incrementally. The statistics and the position of the last processed line break
+     * are restored from {@code checkpoint}, only the lines appended since then are mapped and parsed, and the combined
+     * statistics are written back to {@code checkpoint}. A trailing line without line break is left for the next run,
+     * as it may still be written to. If the checkpoint file does not exist, or was taken of a file which has since been
+     * replaced, truncated or rewritten, the whole file is processed.
+     */
+    public SortedMap<String, StationStats> aggregateIncrementally(Path file, Path checkpoint) throws IOException {
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ); var arena = Arena.ofShared()) {
+            Checkpoint previous = Checkpoint.restore(checkpoint, file, fileChannel);
+            long offset = previous.offset();
+            SortedMap<String, StationStats> result = previous.stats();
+            long fileSize = fileChannel.size();
+            if (fileSize > offset) {
+                MemorySegment appended = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, fileSize - offset, arena);
+                long end = appended.byteSize();
+                while (end > 0 && appended.get(ValueLayout.JAVA_BYTE, end - 1) != '\n') {
+                    end--;
+                }
+                if (end > 0) {
+                    StationStats.mergeInto(result, aggregate(new MappedChunkSource(appended.asSlice(0, end), segmentSize)));
+                    offset += end;
+                }
+            }
+            Checkpoint.of(file, fileChannel, offset, result).write(checkpoint);
+            return result;
+        }
+    }
+
+    /**
+     * Aggregates a gzip compressed file. Files written by {@link BlockGzipOutputStream} come with an index of their
+     * members, which are then inflated by all workers in parallel; any other gzip file, or one whose index is stale, is
+     * inflated sequentially and streamed to the workers.
+     */
+    public SortedMap<String, StationStats> aggregateGzip(Path file) throws IOException {
+        SortedMap<String, StationStats> result = new TreeMap<>();
+        aggregateGzip(file, result::put);
+        return result;
+    }
+
+    /**
+     * Aggregates a gzip compressed file like {@link #aggregateGzip(Path)}, passing the statistics to {@code consumer}
+     * in order of the station names, see {@link #aggregate(List, BiConsumer)}.
+     */
+    public void aggregateGzip(Path file, BiConsumer<String, StationStats> consumer) throws IOException {
+        BlockGzipOutputStream.Index index = BlockGzipOutputStream.Index.read(file);
+        if (index == null) {
+            try (var input = Channels.newChannel(new GZIPInputStream(Files.newInputStream(file), 1 << 16))) {
+                aggregate(input, consumer);
+                return;
+            }
+        }
+        if (index.offsets().length == 0) {
+            return;
+        }
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.ofAuto());
+            try (var source = new GzipChunkSource(data, index)) {
+                aggregate(source, NO_CHECK, consumer);
+            }
+        }
+    }
+
+    /**
+     * Aggregates the input read sequentially from the given channel, e.g. standard input fed through a pipe. The
+     * input is read into reusable direct buffers of the segment size by a dedicated thread and parsed by the workers
+     * while reading continues. The channel is not closed.
+     */
+    public SortedMap<String, StationStats> aggregate(ReadableByteChannel input) throws IOException {
+        SortedMap<String, StationStats> result = new TreeMap<>();
+        aggregate(input, result::put);
+        return result;
+    }
+
+    /**
+     * Aggregates the input read from the given channel like {@link #aggregate(ReadableByteChannel)}, passing the
+     * statistics to {@code consumer} in order of the station names, see {@link #aggregate(List, BiConsumer)}.
+     */
+    public void aggregate(ReadableByteChannel input, BiConsumer<String, StationStats> consumer) throws IOException {
+        try (var source = new StreamChunkSource(input, Math.max(segmentSize, MIN_STREAM_BUFFER_SIZE), threads)) {
+            aggregate(source, NO_CHECK, consumer);
+        }
+    }
+
+    /**
+     * Aggregates an object served over HTTP, e.g. by an S3-compatible object store, which must support range requests.
+     * Segments are fetched with up to {@link Builder#queueDepth(int)} concurrent range requests and parsed as they
+     * arrive, without downloading the whole object first.
+     */
+    public SortedMap<String, StationStats> aggregate(URI uri) throws IOException {
+        SortedMap<String, StationStats> result = new TreeMap<>();
+        aggregate(uri, result::put);
+        return result;
+    }
+
+    /**
+     * Aggregates an object served over HTTP like {@link #aggregate(URI)}, passing the statistics to {@code consumer}
+     * in order of the station names, see {@link #aggregate(List, BiConsumer)}.
+     */
+    public void aggregate(URI uri, BiConsumer<String, StationStats> consumer) throws IOException {
+        try (var source = new HttpChunkSource(uri, segmentSize, queueDepth, threads)) {
+            aggregate(source, NO_CHECK, consumer);
+        }
+    }
+
+    /**
+     * Aggregates the files landing in a spool directory, until the calling thread is interrupted or the directory is
+     * removed. The files already in the directory are aggregated first; then each file created in the directory is
+     * aggregated as it appears, and merged into a running table, which is passed to {@code listener} after each
+     * update. Only files whose name matches {@code filter} are read; as a file is processed as soon as it was
+     * created, it should be written elsewhere and moved into the directory once complete. Returns the statistics of
+     * all files processed.
+     */
+    public SortedMap<String, StationStats> watch(Path directory, PathMatcher filter, Consumer<SortedMap<String, StationStats>> listener) throws IOException {
+        return new DirectoryWatcher(this, directory, filter, listener).run();
+    }
+
+    SortedMap<String, StationStats> aggregate(ChunkSource source) throws IOException {
+        SortedMap<String, StationStats> result = new TreeMap<>();
+        aggregate(source, NO_CHECK, result::put);
+        return result;
+    }
+
+    /**
+     * Aggregates the given source, runs {@code parsed} once all input was parsed, and then passes the statistics to
+     * {@code consumer} in order of the station names.
+     */
+    private void aggregate(ChunkSource source, IoCheck parsed, BiConsumer<String, StationStats> consumer) throws IOException {
+        Chunk first = source.next();
+        if (first == null) {
+            parsed.run();
+            return;
+        }
+        if (sharedTableCapacity > 0) {
+            SortedMap<String, StationStats> result = aggregateShared(source, first);
+            parsed.run();
+            result.forEach(consumer);
+            return;
+        }
+        ParserKind kind = parserKind == ParserKind.AUTO ? ParserSelector.select(first, allowUnsafe) : parserKind;
+        Supplier<MeasurementParser> parsers = ParserSelector.factory(kind, first);
+        NameDictionary dictionary = dictionaryFile != null ? NameDictionary.read(dictionaryFile) : null;
+
+        StationTable[] tables = new StationTable[threads];
+        try {
+            try (Spiller spiller = spillThreshold > 0 ? new Spiller(spillDirectory, spillPartitions, threads) : null) {
+                runWorkers(threads, index -> {
+                    MeasurementParser parser = parsers.get();
+                    StationTable table;
+                    if (dictionary != null) {
+                        table = new StationTable(parser, dictionary.size());
+                        dictionary.preload(parser, table);
+                    }
+                    else {
+                        table = new StationTable(parser);
+                    }
+                    // The chunk used for calibration is processed by the first worker.
+                    Chunk chunk = index == 0 ? first : source.next();
+                    while (chunk != null) {
+                        parser.parse(chunk, table);
+                        source.release(chunk);
+                        if (spiller != null && table.estimatedBytes() > spillThreshold) {
+                            spiller.spill(index, table);
+                            table.close();
+                            table = new StationTable(parser);
+                        }
+                        chunk = source.next();
+                    }
+                    tables[index] = table;
+                });
+                parsed.run();
+                if (spiller != null && spiller.hasSpilled()) {
+                    if (dictionary == null) {
+                        spiller.merge(tables, threads, consumer);
+                        return;
+                    }
+                    List<String> added = new ArrayList<>();
+                    spiller.merge(tables, threads, (name, stats) -> {
+                        if (!dictionary.contains(name)) {
+                            added.add(name);
+                        }
+                        consumer.accept(name, stats);
+                    });
+                    dictionary.update(added);
+                    return;
+                }
+            }
+            if (dictionary != null) {
+                dictionary.merge(tables).forEach(consumer);
+                return;
+            }
+
+            TreeMap<String, StationStats> result = new TreeMap<>();
+            for (StationTable table : tables) {
+                table.mergeInto(result);
+            }
+            result.forEach(consumer);
+        }
+        finally {
+            close(tables);
+        }
+    }
+
+    private SortedMap<String, StationStats> aggregateShared(ChunkSource source, Chunk first) throws IOException {
+        StationTable[] overflows = new StationTable[threads];
+        try (var table = new SharedStationTable(sharedTableCapacity)) {
+            runWorkers(threads, index -> {
+                SharedTableParser parser = new SharedTableParser(table);
+                // Only takes the stations beyond the shared table's capacity
+                StationTable overflow = new StationTable(parser);
+                Chunk chunk = index == 0 ? first : source.next();
+                while (chunk != null) {
+                    parser.parse(chunk, overflow);
+                    source.release(chunk);
+                    chunk = source.next();
+                }
+                overflows[index] = overflow;
+            });
+            SortedMap<String, StationStats> result = table.toMap();
+            for (StationTable overflow : overflows) {
+                overflow.mergeInto(result);
+            }
+            return result;
+        }
+        finally {
+            close(overflows);
+        }
+    }
+
+    // Closes the tables left by the workers; those of failed workers are null
+    private static void close(StationTable[] tables) {
+        for (StationTable table : tables) {
+            if (table != null) {
+                table.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the given task on {@code count} new threads and waits for all of them, rethrowing the first failure.
+     */
+    static void runWorkers(int count, WorkerTask task) throws IOException {
+        Thread[] workers = new Thread[count];
+        Throwable[] failures = new Throwable[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    task.run(index);
+                }
+                catch (Throwable t) {
+                    failures[index] = t;
+                }
+            }, "onebrc-worker-" + i);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for workers");
+        }
+        for (Throwable failure : failures) {
+            if (failure instanceof IOException e) {
+                throw e;
+            }
+            if (failure instanceof UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (failure instanceof RuntimeException e) {
+                throw e;
+            }
+            if (failure instanceof Error e) {
+                throw e;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface WorkerTask {
+        void run(int index) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface IoCheck {
+        void run() throws IOException;
+    }
+
+    public static final class Builder {
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int segmentSize = DEFAULT_SEGMENT_SIZE;
+        private long windowSize;
+        private Set<MapOption> mapOptions = Set.of();
+        private IoMode ioMode = IoMode.MMAP;
+        private int queueDepth = DEFAULT_QUEUE_DEPTH;
+        private boolean releaseEarly;
+        private Map<Path, Long> checksums = Map.of();
+        private long prefetchDistance;
+        private PrefetchMode prefetchMode = PrefetchMode.TOUCH;
+        private Consumer<PrefetchCounters> prefetchListener = counters -> {
+        };
+        private long spillThreshold;
+        private int spillPartitions = DEFAULT_SPILL_PARTITIONS;
+        private Path spillDirectory;
+        private Path dictionaryFile;
+        private int sharedTableCapacity;
+        private ParserKind parserKind = ParserKind.AUTO;
+        private boolean allowUnsafe = true;
+
+        private Builder() {
+        }
+
+        /**
+         * The number of worker threads, by default the number of available processors.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("At least one thread is required: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * The number of bytes a worker claims at a time, by default {@link #DEFAULT_SEGMENT_SIZE}. Smaller segments
+         * balance better across workers, larger ones cost fewer cursor updates.
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < 1) {
+                throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * The number of bytes of a file which are mapped at a time when aggregating files, rounded up to a multiple of
+         * the segment size. Windows are unmapped as soon as all their segments were processed, bounding the mapped
+         * memory to a few windows per run. By default ({@code 0}), files are mapped as a whole.
+         */
+        public Builder windowSize(long windowSize) {
+            if (windowSize < 0) {
+                throw new IllegalArgumentException("Window size must not be negative: " + windowSize);
+            }
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Maps input files with {@code mmap(2)} and the given options instead of {@code FileChannel.map()}, see
+         * {@link MapOption}. Applies to files mapped as a whole, i.e. without a {@link #windowSize(long)}. Empty by
+         * default.
+         */
+        public Builder mapOptions(Set<MapOption> mapOptions) {
+            if (!mapOptions.isEmpty() && !LibC.isSupported()) {
+                throw new IllegalArgumentException("Map options are only supported on Linux");
+            }
+            this.mapOptions = Set.copyOf(mapOptions);
+            return this;
+        }
+
+        /**
+         * How input files are read, by default {@link IoMode#MMAP}; {@link IoMode#AUTO} picks a mode for each run. The
+         * window size, map options, prefetching and early release only apply to memory mapped input.
+         */
+        public Builder ioMode(IoMode ioMode) {
+            if (ioMode == IoMode.DIRECT && !LibC.isSupported()) {
+                throw new IllegalArgumentException("Direct I/O is only supported on Linux");
+            }
+            this.ioMode = ioMode;
+            return this;
+        }
+
+        /**
+         * The maximum number of reads outstanding with {@link IoMode#ASYNC}, and of concurrent range requests for
+         * {@link AggregationEngine#aggregate(URI) HTTP input}, by default {@link #DEFAULT_QUEUE_DEPTH}. Deeper queues help
+         * with high latency storage, at the price of one buffer of the segment size per read.
+         */
+        public Builder queueDepth(int queueDepth) {
+            if (queueDepth < 1) {
+                throw new IllegalArgumentException("Queue depth must be positive: " + queueDepth);
+            }
+            this.queueDepth = queueDepth;
+            return this;
+        }
+
+        /**
+         * Whether the pages of files mapped as a whole are released as soon as all the segments reading them were
+         * processed, rather than when the run ends. This keeps the resident set from growing to the size of the input,
+         * and spreads the cost of tearing down the mappings across the workers. Linux only, {@code false} by default.
+         */
+        public Builder releaseEarly(boolean releaseEarly) {
+            if (releaseEarly && !LibC.isSupported()) {
+                throw new IllegalArgumentException("Releasing segments early is only supported on Linux");
+            }
+            this.releaseEarly = releaseEarly;
+            return this;
+        }
+
+        /**
+         * Verifies the input files against the given CRC32C checksums, as unsigned 32-bit values keyed by file. The
+         * checksums are computed by the workers on the mapped segments they parse, and a run fails with an
+         * {@code IOException} if a file's checksum differs, or if there is none for it. Requires files to be mapped as
+         * a whole, i.e. {@link IoMode#MMAP} without a {@link #windowSize(long)}. Empty by default.
+         */
+        public Builder checksums(Map<Path, Long> checksums) {
+            Map<Path, Long> normalized = new HashMap<>();
+            checksums.forEach((file, checksum) -> normalized.put(file.toAbsolutePath().normalize(), checksum));
+            this.checksums = Map.copyOf(normalized);
+            return this;
+        }
+
+        /**
+         * Runs a prefetcher thread which makes the pages of files mapped as a whole resident up to {@code distance}
+         * bytes ahead of the segment cursor, so that the workers do not stall on page faults. Disabled by default
+         * ({@code 0}).
+         */
+        public Builder prefetch(long distance, PrefetchMode mode) {
+            if (distance < 0) {
+                throw new IllegalArgumentException("Prefetch distance must not be negative: " + distance);
+            }
+            if (distance > 0 && mode == PrefetchMode.WILLNEED && !LibC.isSupported()) {
+                throw new IllegalArgumentException("WILLNEED prefetching is only supported on Linux");
+            }
+            this.prefetchDistance = distance;
+            this.prefetchMode = mode;
+            return this;
+        }
+
+        /**
+         * Receives the counters of the prefetcher after each run with prefetching, for tuning the distance.
+         */
+        public Builder prefetchListener(Consumer<PrefetchCounters> prefetchListener) {
+            this.prefetchListener = prefetchListener;
+            return this;
+        }
+
+        /**
+         * Spills a worker's table to disk whenever its estimated size passes {@code threshold} bytes, checked after
+         * each segment, so that runs with more distinct stations than fit into memory once per worker still complete.
+         * Spilled entries are partitioned by name range into {@code partitions} files per worker in a temporary
+         * directory below {@code directory}, which are merged one partition per worker at a time once all input was
+         * parsed. To keep the memory bounded, take the result with one of the methods passing it to a consumer, such as
+         * {@link AggregationEngine#aggregate(List, BiConsumer)}, which pass on each merged partition in turn; the methods
+         * returning a map still hold every station once. Disabled by default ({@code 0}).
+         */
+        public Builder spill(long threshold, int partitions, Path directory) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("Spill threshold must not be negative: " + threshold);
+            }
+            if (partitions < 1) {
+                throw new IllegalArgumentException("At least one spill partition is required: " + partitions);
+            }
+            this.spillThreshold = threshold;
+            this.spillPartitions = partitions;
+            this.spillDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Keeps the station names of all runs in the given file, for inputs whose stations hardly change between runs.
+         * Each run preloads the names into the workers' tables, which are sized for them up front, merges their
+         * entries by position rather than by name, and appends the names it saw first to the file. Not used by
+         * default ({@code null}).
+         */
+        public Builder dictionary(Path dictionaryFile) {
+            this.dictionaryFile = dictionaryFile;
+            return this;
+        }
+
+        /**
+         * Aggregates into a single {@link SharedStationTable off-heap table} for up to {@code capacity} stations, shared
+         * by all workers and updated atomically, instead of one table per worker merged at the end. This saves the
+         * merge and the per-worker copies of every station, which dominate with many distinct stations and workers, at
+         * the price of atomic updates, see {@code StationTableBenchmark}. Once the capacity is reached, each worker
+         * aggregates the further stations into a table of its own, merged at the end as usual. The shared table has its
+         * own kernel, so the parser setting does not apply. Disabled by default ({@code 0}).
+         */
+        public Builder sharedTable(int capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("Shared table capacity must not be negative: " + capacity);
+            }
+            this.sharedTableCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * The line parsing kernel, by default {@link ParserKind#AUTO}.
+         */
+        public Builder parser(ParserKind parserKind) {
+            if (parserKind == ParserKind.VECTOR && !ParserSelector.vectorApiAvailable()) {
+                throw new IllegalArgumentException("The vector parser requires --add-modules jdk.incubator.vector");
+            }
+            this.parserKind = parserKind;
+            return this;
+        }
+
+        /**
+         * Whether kernels reading through {@code sun.misc.Unsafe} may be used, {@code true} by default.
+         */
+        public Builder allowUnsafe(boolean allowUnsafe) {
+            this.allowUnsafe = allowUnsafe;
+            return this;
+        }
+
+        public AggregationEngine build() {
+            if (parserKind == ParserKind.SWAR && !allowUnsafe) {
+                throw new IllegalStateException("The SWAR parser uses sun.misc.Unsafe, use SWAR_SEGMENT instead");
+            }
+            if (sharedTableCapacity > 0 && (spillThreshold > 0 || dictionaryFile != null)) {
+                throw new IllegalStateException("Spilling and dictionaries only apply to per-worker tables");
+            }
+            if (!checksums.isEmpty() && (ioMode != IoMode.MMAP || windowSize > 0)) {
+                throw new IllegalStateException("Checksums are only verified for files mapped as a whole");
+            }
+            return new AggregationEngine(this);
+        }
+    }
+}
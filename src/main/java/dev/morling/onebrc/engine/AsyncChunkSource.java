@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads segments of the input files with {@link AsynchronousFileChannel}, overlapping I/O with parsing where page
+ * faults of a mapping are slow, e.g. on network file systems. At most {@code queueDepth} reads are outstanding at any
+ * time, each into a buffer from a fixed pool; completion handlers queue the filled buffers for the workers, which return
+ * them to the pool via {@link #release(Chunk)}, which in turn issues the next read.
+ * <p>
+ * Like {@link DirectChunkSource}, each read extends {@link #READ_AHEAD} bytes past the end of its segment, so that
+ * every buffer can be parsed on its own, no matter in which order reads complete.
+ */
+final class AsyncChunkSource implements ChunkSource {
+    // Longest line (100 bytes name, ';', "-99.9", '\n'), rounded up
+    static final int READ_AHEAD = 128;
+
+    private static final Object SKIPPED = new Object();
+
+    private final AsynchronousFileChannel[] channels;
+    private final long[] fileSizes;
+    private final long[] fileStarts;
+    private final long totalSize;
+    private final long totalSegments;
+    private final int segmentSize;
+    private final int queueDepth;
+    private final ExecutorService executor;
+    private final Arena arena = Arena.ofShared();
+    private final BlockingQueue<MemorySegment> free;
+    // Chunks, SKIPPED or the failure of a read
+    private final BlockingQueue<Object> completed;
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Guarded by this
+    private long cursor;
+
+    AsyncChunkSource(List<Path> files, int segmentSize, int queueDepth, int workers) throws IOException {
+        this.segmentSize = segmentSize;
+        this.queueDepth = queueDepth;
+        this.executor = Executors.newFixedThreadPool(queueDepth, runnable -> {
+            Thread thread = new Thread(runnable, "onebrc-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<AsynchronousFileChannel> channels = new ArrayList<>(files.size());
+        List<Long> fileSizes = new ArrayList<>(files.size());
+        try {
+            for (Path file : files) {
+                long size = Files.size(file);
+                if (size > 0) {
+                    channels.add(AsynchronousFileChannel.open(file, Set.of(StandardOpenOption.READ), executor));
+                    fileSizes.add(size);
+                }
+            }
+        }
+        catch (IOException e) {
+            for (AsynchronousFileChannel channel : channels) {
+                channel.close();
+            }
+            executor.shutdown();
+            arena.close();
+            throw e;
+        }
+        this.channels = channels.toArray(AsynchronousFileChannel[]::new);
+        this.fileSizes = fileSizes.stream().mapToLong(Long::longValue).toArray();
+        this.fileStarts = new long[this.channels.length];
+        long position = 0;
+        long segments = 0;
+        for (int i = 0; i < this.channels.length; i++) {
+            fileStarts[i] = position;
+            position += Math.ceilDiv(this.fileSizes[i], segmentSize) * segmentSize;
+            segments += Math.ceilDiv(this.fileSizes[i], segmentSize);
+        }
+        this.totalSize = position;
+        this.totalSegments = segments;
+
+        // Buffers being read, plus those being parsed or waiting to be
+        int buffers = queueDepth + workers;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.completed = new LinkedBlockingQueue<>();
+        for (int i = 0; i < buffers; i++) {
+            free.add(arena.allocate(segmentSize + READ_AHEAD + 1 + Chunk.PADDING));
+        }
+        submit();
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+        try {
+            while (taken.getAndIncrement() < totalSegments) {
+                Object result = completed.take();
+                if (result instanceof Chunk chunk) {
+                    return chunk;
+                }
+                if (result instanceof Throwable failure) {
+                    // Leave the failure for the other workers
+                    completed.add(failure);
+                    throw new IOException("Reading the input failed", failure);
+                }
+            }
+            return null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+    }
+
+    @Override
+    public void release(Chunk chunk) {
+        free.add(chunk.data());
+        submit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (AsynchronousFileChannel channel : channels) {
+            channel.close();
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        arena.close();
+    }
+
+    /**
+     * Starts reads of the next segments while there are free buffers and fewer than {@code queueDepth} reads
+     * outstanding.
+     */
+    private synchronized void submit() {
+        while (cursor < totalSize && inFlight.get() < queueDepth) {
+            int file = Arrays.binarySearch(fileStarts, cursor);
+            if (file < 0) {
+                file = -file - 2;
+            }
+            long offset = cursor - fileStarts[file];
+            if (offset >= fileSizes[file]) {
+                // Alignment gap after the end of the file
+                cursor = fileStarts[file] + Math.ceilDiv(fileSizes[file], segmentSize) * segmentSize;
+                continue;
+            }
+            MemorySegment buffer = free.poll();
+            if (buffer == null) {
+                return;
+            }
+            cursor += segmentSize;
+            inFlight.incrementAndGet();
+            ByteBuffer target = buffer.asByteBuffer().limit(segmentSize + READ_AHEAD);
+            channels[file].read(target, offset, new Read(file, offset, buffer, target), handler);
+        }
+    }
+
+    private final CompletionHandler<Integer, Read> handler = new CompletionHandler<>() {
+
+        @Override
+        public void completed(Integer bytes, Read read) {
+            long position = read.offset() + read.target().position();
+            if (bytes > 0 && read.target().hasRemaining() && position < fileSizes[read.file()]) {
+                // Short read, continue where it ended
+                channels[read.file()].read(read.target(), position, read, this);
+                return;
+            }
+            AsyncChunkSource.this.completed(read);
+        }
+
+        @Override
+        public void failed(Throwable failure, Read read) {
+            inFlight.decrementAndGet();
+            completed.add(failure);
+        }
+    };
+
+    private void completed(Read read) {
+        MemorySegment buffer = read.buffer();
+        Chunk chunk = chunk(buffer, read.target().position(), read.offset(), segmentSize, fileStarts[read.file()] + read.offset());
+        if (chunk == null) {
+            free.add(buffer);
+        }
+        inFlight.decrementAndGet();
+        completed.add(chunk != null ? chunk : SKIPPED);
+        submit();
+    }
+
+    /**
+     * Creates the chunk for a segment which was read into {@code buffer} together with the {@link #READ_AHEAD} bytes
+     * after it, or returns {@code null} if the segment lies entirely within a line owned by the previous segment.
+     *
+     * @param length the number of bytes read, less than the segment size plus read-ahead at the end of the input
+     * @param offset the offset of the segment within its file
+     */
+    static Chunk chunk(MemorySegment buffer, long length, long offset, int segmentSize, long position) {
+        MemorySegment data = buffer.asSlice(0, length);
+        long start = offset == 0 ? 0 : MappedChunkSource.nextNewLine(data, 0) + 1;
+        long end = MappedChunkSource.nextNewLine(data, Math.min(length - 1, segmentSize)) + 1;
+        if (start >= end) {
+            return null;
+        }
+        if (buffer.get(ValueLayout.JAVA_BYTE, end - 1) != '\n') {
+            // Tolerate a missing line break at the end of the file.
+            buffer.set(ValueLayout.JAVA_BYTE, end++, (byte) '\n');
+        }
+        return new Chunk(buffer, start, end, position);
+    }
+
+    private record Read(int file, long offset, MemorySegment buffer, ByteBuffer target) {
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes measurements as a multi-member gzip file, in the spirit of BGZF: the output is cut into blocks of whole lines,
+ * each of which is compressed as a gzip member of its own. The file stays readable by any gzip tool, while the engine
+ * can inflate the members in parallel. The offset and uncompressed length of every member are written to an index file
+ * next to the output, named like the output with {@link #INDEX_SUFFIX} appended. The index also records the size and
+ * modification time of the output, so that an index left behind by a file which was rewritten or replaced since is
+ * recognized as stale and ignored.
+ */
+public final class BlockGzipOutputStream extends OutputStream {
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final int DEFAULT_BLOCK_SIZE = AggregationEngine.DEFAULT_SEGMENT_SIZE;
+
+    private static final int INDEX_MAGIC = 0x42475A49; // "BGZI"
+
+    private final Path file;
+    private final OutputStream out;
+    private final Path indexFile;
+    private final byte[] block;
+    private int length;
+    private final ByteArrayOutputStream member = new ByteArrayOutputStream();
+    private final List<Long> memberOffsets = new ArrayList<>();
+    private final List<Integer> memberLengths = new ArrayList<>();
+    private long compressedOffset;
+
+    public BlockGzipOutputStream(Path file) throws IOException {
+        this(file, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockGzipOutputStream(Path file, int blockSize) throws IOException {
+        this.file = file;
+        this.out = Files.newOutputStream(file);
+        this.indexFile = indexFile(file);
+        this.block = new byte[blockSize];
+    }
+
+    static Path indexFile(Path file) {
+        return file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == block.length) {
+            flushBlock();
+        }
+        block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == block.length) {
+                flushBlock();
+            }
+            int n = Math.min(len, block.length - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Compresses all complete lines of the block and keeps the trailing partial line
+    private void flushBlock() throws IOException {
+        int end = length;
+        while (end > 0 && block[end - 1] != '\n') {
+            end--;
+        }
+        if (end == 0) {
+            throw new IOException("Line exceeds the block size of " + block.length + " bytes");
+        }
+        writeMember(end);
+        System.arraycopy(block, end, block, 0, length - end);
+        length -= end;
+    }
+
+    private void writeMember(int memberLength) throws IOException {
+        member.reset();
+        try (var gzip = new GZIPOutputStream(member)) {
+            gzip.write(block, 0, memberLength);
+        }
+        member.writeTo(out);
+        memberOffsets.add(compressedOffset);
+        memberLengths.add(memberLength);
+        compressedOffset += member.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (out) {
+            if (length > 0) {
+                writeMember(length);
+                length = 0;
+            }
+        }
+        try (var index = new DataOutputStream(Files.newOutputStream(indexFile))) {
+            index.writeInt(INDEX_MAGIC);
+            index.writeLong(Files.size(file));
+            index.writeLong(Files.getLastModifiedTime(file).toMillis());
+            index.writeInt(memberOffsets.size());
+            for (int i = 0; i < memberOffsets.size(); i++) {
+                index.writeLong(memberOffsets.get(i));
+                index.writeInt(memberLengths.get(i));
+            }
+        }
+    }
+
+    /**
+     * The index of a block gzip file.
+     */
+    record Index(long[] offsets, int[] lengths) {
+
+        /**
+         * Reads the index of the given file, or returns {@code null} if the file has none, or if the index does not
+         * match the file's current size and modification time, or is incomplete.
+         */
+        static Index read(Path file) throws IOException {
+            Path indexFile = indexFile(file);
+            if (!Files.exists(indexFile)) {
+                return null;
+            }
+            try (var index = new DataInputStream(Files.newInputStream(indexFile))) {
+                if (index.readInt() != INDEX_MAGIC
+                        || index.readLong() != Files.size(file)
+                        || index.readLong() != Files.getLastModifiedTime(file).toMillis()) {
+                    return null;
+                }
+                int count = index.readInt();
+                long[] offsets = new long[count];
+                int[] lengths = new int[count];
+                for (int i = 0; i < count; i++) {
+                    offsets[i] = index.readLong();
+                    lengths[i] = index.readInt();
+                }
+                return new Index(offsets, lengths);
+            }
+            catch (EOFException e) {
+                // Written by a run which did not complete
+                return null;
+            }
+        }
+
+        int maxLength() {
+            int max = 0;
+            for (int length : lengths) {
+                max = Math.max(max, length);
+            }
+            return max;
+        }
+    }
+}
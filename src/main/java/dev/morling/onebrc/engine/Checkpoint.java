@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * The persisted state of an incremental run: the statistics of all lines up to {@code offset}, which is the position
+ * right after the last line break processed so far. Checkpoints are replaced atomically, so that an interrupted run
+ * leaves the previous checkpoint intact.
+ * <p>
+ * A checkpoint also identifies the file it was taken of, by its file key, i.e. device and inode on Unix, and by the
+ * checksum of the {@value #TAIL} bytes before {@code offset}. A file which was replaced, truncated or rewritten since
+ * does not match these, and is processed from its start again. The creation time is not used, as Linux file systems
+ * without birth time report the modification time instead, which changes with every append.
+ */
+record Checkpoint(long offset, String fileKey, int tailChecksum, SortedMap<String, StationStats> stats) {
+    private static final System.Logger LOGGER = System.getLogger(Checkpoint.class.getName());
+
+    private static final int MAGIC = 0x31425243; // "1BRC"
+    private static final int VERSION = 2;
+    static final int TAIL = 4096;
+
+    static Checkpoint empty() {
+        return new Checkpoint(0, "", 0, new TreeMap<>());
+    }
+
+    /**
+     * Creates the checkpoint of the given file, open as {@code channel}, after processing it up to {@code offset}.
+     */
+    static Checkpoint of(Path file, FileChannel channel, long offset, SortedMap<String, StationStats> stats) throws IOException {
+        return new Checkpoint(offset, fileKey(file), tailChecksum(channel, offset), stats);
+    }
+
+    /**
+     * Restores the checkpoint of the given file, open as {@code channel}, from the file {@code checkpoint}. Returns an
+     * empty checkpoint if there is none yet, or if it was taken of another file or of different contents.
+     */
+    static Checkpoint restore(Path checkpoint, Path file, FileChannel channel) throws IOException {
+        Checkpoint previous = read(checkpoint);
+        if (previous.offset == 0) {
+            return previous;
+        }
+        if (!previous.fileKey.equals(fileKey(file))) {
+            LOGGER.log(System.Logger.Level.WARNING, "{0} is not the file of checkpoint {1}, it may have been replaced; starting over", file, checkpoint);
+            return empty();
+        }
+        if (channel.size() < previous.offset || tailChecksum(channel, previous.offset) != previous.tailChecksum) {
+            LOGGER.log(System.Logger.Level.WARNING, "{0} does not match checkpoint {1}, it may have been truncated or rewritten; starting over", file,
+                    checkpoint);
+            return empty();
+        }
+        return previous;
+    }
+
+    /**
+     * Reads the checkpoint from the given file, or returns an empty checkpoint if the file does not exist.
+     */
+    static Checkpoint read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return empty();
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long offset = in.readLong();
+            String fileKey = in.readUTF();
+            int tailChecksum = in.readInt();
+            int stations = in.readInt();
+            TreeMap<String, StationStats> stats = new TreeMap<>();
+            for (int i = 0; i < stations; i++) {
+                String name = in.readUTF();
+                stats.put(name, new StationStats(in.readInt(), in.readInt(), in.readLong(), in.readLong()));
+            }
+            return new Checkpoint(offset, fileKey, tailChecksum, stats);
+        }
+    }
+
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(offset);
+            out.writeUTF(fileKey);
+            out.writeInt(tailChecksum);
+            out.writeInt(stats.size());
+            for (Map.Entry<String, StationStats> entry : stats.entrySet()) {
+                StationStats station = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(station.minTenths());
+                out.writeInt(station.maxTenths());
+                out.writeLong(station.sumTenths());
+                out.writeLong(station.count());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The file key, or an empty string on platforms without one
+    private static String fileKey(Path file) throws IOException {
+        return Objects.toString(Files.readAttributes(file, BasicFileAttributes.class).fileKey(), "");
+    }
+
+    // The CRC32C checksum of the bytes before the given offset, up to TAIL of them
+    private static int tailChecksum(FileChannel channel, long offset) throws IOException {
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(TAIL, offset));
+        long position = offset - tail.capacity();
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, position + tail.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + tail.position()));
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(tail.flip());
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A range of complete lines, {@code [start, end)} within {@code data}. The range always ends right after a '\n', and
+ * {@code data} is guaranteed to be readable for at least {@link #PADDING} bytes past {@code end}, so that parsers may
+ * read whole words or vectors at the tail without bounds checks.
+ * <p>
+ * {@code position} orders the chunks of a source by their place in the input: a chunk with a smaller position holds
+ * earlier lines. For memory mapped input it is the cursor position at which the chunk's segment was claimed.
+ */
+record Chunk(MemorySegment data, long start, long end, long position) {
+    static final int PADDING = 128;
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Hands out {@link Chunk}s to the worker threads. Implementations must be safe for concurrent use, as every worker
+ * pulls its next chunk itself, which is what balances the load between the workers.
+ */
+interface ChunkSource extends Closeable {
+
+    /**
+     * Returns the next chunk to process, or {@code null} once the input is exhausted.
+     */
+    Chunk next() throws IOException;
+
+    /**
+     * Called by the worker once it is done with the given chunk, allowing the source to reuse or free its memory.
+     */
+    default void release(Chunk chunk) {
+    }
+
+    /**
+     * Frees the resources of this source, once all workers are done with it.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
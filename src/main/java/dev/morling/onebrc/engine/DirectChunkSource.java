@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work stealing like {@link MappedChunkSource}, but reading the files with {@code pread(2)} on file descriptors opened
+ * with {@code O_DIRECT}, bypassing the page cache. Large scans thus neither evict other data from the page cache nor
+ * depend on what happens to be cached, at the price of doing all I/O synchronously in the workers.
+ * <p>
+ * Each claimed segment is read, together with the block following it for the line crossing its end, into a block
+ * aligned buffer. Buffers are taken from a pool when a segment is claimed and returned to it when the chunk is
+ * released, so that there is one buffer per worker, each with one read in flight at most. Segment sizes are rounded up
+ * to a multiple of {@link #BLOCK_SIZE}, as direct I/O requires aligned offsets and lengths.
+ */
+final class DirectChunkSource implements ChunkSource {
+    // Covers the logical block size of common devices, and the longest line (108 bytes)
+    static final int BLOCK_SIZE = 4096;
+
+    private final Arena arena = Arena.ofShared();
+    private final int[] fds;
+    private final long[] fileSizes;
+    private final long[] fileStarts;
+    private final long totalSize;
+    private final int segmentSize;
+    private final AtomicLong cursor = new AtomicLong();
+    private final Queue<MemorySegment> buffers = new ConcurrentLinkedQueue<>();
+
+    DirectChunkSource(List<Path> files, int segmentSize) throws IOException {
+        this.segmentSize = Math.ceilDiv(segmentSize, BLOCK_SIZE) * BLOCK_SIZE;
+        List<Integer> fds = new ArrayList<>(files.size());
+        List<Long> fileSizes = new ArrayList<>(files.size());
+        try (var local = Arena.ofConfined()) {
+            MemorySegment callState = LibC.newCallState(local);
+            for (Path file : files) {
+                long size = Files.size(file);
+                if (size > 0) {
+                    fds.add(LibC.open(callState, file, LibC.O_RDONLY | LibC.O_DIRECT));
+                    fileSizes.add(size);
+                }
+            }
+        }
+        catch (IOException e) {
+            fds.forEach(LibC::close);
+            arena.close();
+            throw e;
+        }
+
+        this.fds = fds.stream().mapToInt(Integer::intValue).toArray();
+        this.fileSizes = fileSizes.stream().mapToLong(Long::longValue).toArray();
+        this.fileStarts = new long[this.fds.length];
+        long position = 0;
+        for (int i = 0; i < this.fds.length; i++) {
+            fileStarts[i] = position;
+            position += Math.ceilDiv(this.fileSizes[i], this.segmentSize) * this.segmentSize;
+        }
+        this.totalSize = position;
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+        while (true) {
+            long claimed = cursor.getAndAdd(segmentSize);
+            if (claimed >= totalSize) {
+                return null;
+            }
+
+            int file = Arrays.binarySearch(fileStarts, claimed);
+            if (file < 0) {
+                file = -file - 2;
+            }
+            long current = claimed - fileStarts[file];
+            if (current >= fileSizes[file]) {
+                continue;
+            }
+
+            MemorySegment buffer = buffer();
+            long read = read(fds[file], fileSizes[file], buffer, current);
+            long start = current == 0 ? 0 : nextNewLine(buffer, 0, read) + 1;
+            long end = nextNewLine(buffer, Math.min(read - 1, segmentSize), read) + 1;
+            if (start >= end) {
+                // The segment lies entirely within a line owned by the previous segment.
+                buffers.offer(buffer);
+                continue;
+            }
+            if (buffer.get(ValueLayout.JAVA_BYTE, end - 1) != '\n') {
+                // Tolerate a missing line break at the end of the file.
+                buffer.set(ValueLayout.JAVA_BYTE, end++, (byte) '\n');
+            }
+            return new Chunk(buffer, start, end, claimed);
+        }
+    }
+
+    @Override
+    public void release(Chunk chunk) {
+        buffers.offer(chunk.data());
+    }
+
+    @Override
+    public void close() {
+        for (int fd : fds) {
+            LibC.close(fd);
+        }
+        arena.close();
+    }
+
+    private MemorySegment buffer() {
+        MemorySegment buffer = buffers.poll();
+        // The segment, the block for the line crossing its end, and the padding after the chunk
+        return buffer != null ? buffer : arena.allocate(segmentSize + 2L * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    /**
+     * Reads the segment at {@code offset} and the block after it, returning the number of bytes read, which is less
+     * only at the end of the file. A short read before the end of the file is continued from the last whole block it
+     * read, as direct I/O requires the next read to be block aligned as well.
+     */
+    private long read(int fd, long fileSize, MemorySegment buffer, long offset) throws IOException {
+        try (var local = Arena.ofConfined()) {
+            MemorySegment callState = LibC.newCallState(local);
+            long length = segmentSize + BLOCK_SIZE;
+            long read = 0;
+            while (read < length) {
+                long result = LibC.pread(callState, fd, buffer.address() + read, length - read, offset + read);
+                if (result == 0) {
+                    break;
+                }
+                if (result < 0) {
+                    if (LibC.errno(callState) == LibC.EINTR) {
+                        continue;
+                    }
+                    throw new IOException("Cannot read at offset " + (offset + read) + ": " + LibC.error(callState));
+                }
+                if (offset + read + result >= fileSize || (result & (BLOCK_SIZE - 1)) == 0) {
+                    read += result;
+                }
+                else if (result >= BLOCK_SIZE) {
+                    read += result & -BLOCK_SIZE;
+                }
+                else {
+                    throw new IOException("Cannot read a whole block at offset " + (offset + read) + ", got " + result + " bytes");
+                }
+            }
+            return read;
+        }
+    }
+
+    private static long nextNewLine(MemorySegment buffer, long position, long limit) {
+        while (position < limit - 1 && buffer.get(ValueLayout.JAVA_BYTE, position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates the files of a spool directory as they land, merging them into a running table. Files present when
+ * watching starts are processed first; after that, the files created since the last batch are aggregated together in
+ * one run of the engine, and the listener receives the updated table. Every file is processed once, identified by its
+ * name; a full rescan of the directory recovers from overflowed watch events.
+ * <p>
+ * If a batch cannot be aggregated, e.g. as one of its files was removed or renamed before it was read, its files are
+ * aggregated one by one instead. A file failing on its own is logged and left out, without stopping the watch; as it
+ * is not marked as processed, it is picked up again by the next rescan.
+ */
+final class DirectoryWatcher {
+    private static final System.Logger LOGGER = System.getLogger(DirectoryWatcher.class.getName());
+
+    private final AggregationEngine engine;
+    private final Path directory;
+    private final PathMatcher filter;
+    private final Consumer<SortedMap<String, StationStats>> listener;
+    private final Set<Path> processed = new HashSet<>();
+    private final TreeMap<String, StationStats> result = new TreeMap<>();
+
+    DirectoryWatcher(AggregationEngine engine, Path directory, PathMatcher filter, Consumer<SortedMap<String, StationStats>> listener) {
+        this.engine = engine;
+        this.directory = directory;
+        this.filter = filter;
+        this.listener = listener;
+    }
+
+    /**
+     * Watches the directory until the calling thread is interrupted or the directory is removed, returning the
+     * statistics of all files processed until then.
+     */
+    SortedMap<String, StationStats> run() throws IOException {
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            // Registered before the initial scan, so that no file goes unnoticed in between
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            process(scan());
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return result;
+                }
+                List<Path> created = new ArrayList<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        LOGGER.log(System.Logger.Level.DEBUG, "Watch events for {0} overflowed, rescanning", directory);
+                        created = scan();
+                        break;
+                    }
+                    created.add(directory.resolve((Path) event.context()));
+                }
+                process(created);
+                if (!key.reset()) {
+                    LOGGER.log(System.Logger.Level.DEBUG, "Stopped watching {0}, it is no longer accessible", directory);
+                    return result;
+                }
+            }
+        }
+    }
+
+    private List<Path> scan() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (var stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private void process(List<Path> candidates) throws IOException {
+        List<Path> batch = new ArrayList<>();
+        for (Path file : candidates) {
+            if (filter.matches(file.getFileName()) && Files.isRegularFile(file) && !processed.contains(file)) {
+                batch.add(file);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch.sort(null);
+        LOGGER.log(System.Logger.Level.DEBUG, "Aggregating {0}", batch);
+        try {
+            StationStats.mergeInto(result, engine.aggregate(batch));
+            processed.addAll(batch);
+        }
+        catch (IOException | UncheckedIOException e) {
+            if (batch.size() == 1) {
+                skip(batch.get(0), e);
+                return;
+            }
+            LOGGER.log(System.Logger.Level.DEBUG, "Aggregating {0} failed, retrying file by file", batch);
+            boolean updated = false;
+            for (Path file : batch) {
+                try {
+                    StationStats.mergeInto(result, engine.aggregate(List.of(file)));
+                    processed.add(file);
+                    updated = true;
+                }
+                catch (IOException | UncheckedIOException fileException) {
+                    skip(file, fileException);
+                }
+            }
+            if (!updated) {
+                return;
+            }
+        }
+        listener.accept(Collections.unmodifiableSortedMap(result));
+    }
+
+    private static void skip(Path file, Exception e) {
+        LOGGER.log(System.Logger.Level.WARNING, "Skipping " + file + ", it could not be aggregated", e);
+    }
+}
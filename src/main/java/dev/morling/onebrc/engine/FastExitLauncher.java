@@ -0,0 +1,188 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hides the teardown of a run from the caller, generalizing {@code CalculateAverage_thomaswue.spawnWorker()}: the
+ * launching process re-executes itself as a worker, copies the worker's standard output to its own and returns as
+ * soon as the worker closed it. Unmapping the input and shutting down the worker's JVM then happen after the caller
+ * already got the result. Usage:
+ *
+ * <pre>
+ * public static void main(String[] args) throws IOException {
+ *     if (FastExitLauncher.launch(args)) {
+ *         return;
+ *     }
+ *     System.out.println(engine.aggregate(file));
+ *     FastExitLauncher.finish();
+ * }
+ * </pre>
+ *
+ * Within the worker, the engine defers releasing resources whose release only returns memory to the operating system,
+ * such as the mappings of the input files, until {@link #finish()}.
+ * <p>
+ * With the system property {@value #REPORT_PROPERTY} set to {@code true}, e.g. through {@code JAVA_OPTS} of
+ * {@code calculate_average_engine.sh}, the launcher waits for the worker to exit after copying its output, and prints
+ * the wall time until the result was complete next to the teardown time hidden from the caller, from then until the
+ * worker's exit, to standard error. The reported run then of course takes as long as one without the launcher, so this
+ * is for measuring how much the launcher saves, not for timing runs.
+ */
+public final class FastExitLauncher {
+    public static final String WORKER_FLAG = "--worker";
+    public static final String REPORT_PROPERTY = "onebrc.reportTeardown";
+
+    // Written by the worker after its output, as the launcher cannot wait for the worker's exit code
+    private static final int COMPLETED = 0;
+
+    private static final Queue<AutoCloseable> DEFERRED = new ConcurrentLinkedQueue<>();
+    private static volatile boolean worker;
+
+    private FastExitLauncher() {
+    }
+
+    /**
+     * Spawns the worker process, unless this is the worker process already.
+     *
+     * @return {@code true} in the launching process, once the worker's output was copied to standard output; the
+     *         caller should return without further output. {@code false} in the worker process, or if the command of
+     *         this process cannot be determined; the caller should run and print the aggregation and then call
+     *         {@link #finish()}.
+     */
+    public static boolean launch(String[] args) throws IOException {
+        if (Arrays.asList(args).contains(WORKER_FLAG)) {
+            worker = true;
+            return false;
+        }
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        Optional<String> command = info.command();
+        if (command.isEmpty()) {
+            return false;
+        }
+
+        List<String> workerCommand = new ArrayList<>();
+        workerCommand.add(command.get());
+        info.arguments().ifPresent(arguments -> workerCommand.addAll(Arrays.asList(arguments)));
+        workerCommand.add(WORKER_FLAG);
+        long start = info.startInstant().map(instant -> instant.toEpochMilli()).orElseGet(System::currentTimeMillis);
+        Process process = new ProcessBuilder(workerCommand).inheritIO().redirectOutput(ProcessBuilder.Redirect.PIPE).start();
+        int last = -1;
+        try (var output = process.getInputStream()) {
+            // Hold back the last byte read, which is the completion marker if the worker reached finish()
+            byte[] buffer = new byte[8192];
+            for (int read; (read = output.read(buffer)) > 0;) {
+                if (last >= 0) {
+                    System.out.write(last);
+                }
+                System.out.write(buffer, 0, read - 1);
+                last = buffer[read - 1];
+            }
+        }
+        if (last != COMPLETED) {
+            if (last >= 0) {
+                System.out.write(last);
+            }
+            System.out.flush();
+            try {
+                int exitValue = process.waitFor();
+                System.exit(exitValue != 0 ? exitValue : 1);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the worker to fail", e);
+            }
+        }
+        System.out.flush();
+        if (Boolean.getBoolean(REPORT_PROPERTY)) {
+            report(process, start);
+        }
+        return true;
+    }
+
+    // Waits for the worker to exit and prints how long the caller waited for the result, and how much longer without
+    // the launcher
+    private static void report(Process process, long start) throws IOException {
+        long completed = System.currentTimeMillis();
+        try {
+            process.waitFor();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the worker to exit", e);
+        }
+        System.err.printf("Wall time: %d ms, teardown hidden from the caller: %d ms%n", completed - start, System.currentTimeMillis() - completed);
+    }
+
+    /**
+     * Whether this process is a worker started by {@link #launch(String[])}.
+     */
+    public static boolean isWorker() {
+        return worker;
+    }
+
+    /**
+     * Marks the output as complete and closes it, which lets the launching process return, and then releases the
+     * deferred resources. Does nothing but flushing standard output outside of a worker process. A worker which does
+     * not reach this method is considered failed; the launching process then exits with the worker's exit code.
+     */
+    public static void finish() {
+        if (!worker) {
+            System.out.flush();
+            return;
+        }
+        System.out.write(COMPLETED);
+        System.out.close();
+
+        for (AutoCloseable resource; (resource = DEFERRED.poll()) != null;) {
+            close(resource);
+        }
+    }
+
+    /**
+     * Releases the given resource, or, within a worker process, defers releasing it until {@link #finish()}.
+     */
+    static void release(AutoCloseable resource) {
+        if (worker) {
+            DEFERRED.add(resource);
+        }
+        else {
+            close(resource);
+        }
+    }
+
+    private static void close(AutoCloseable resource) {
+        try {
+            resource.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
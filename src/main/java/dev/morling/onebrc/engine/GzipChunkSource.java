@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Chunks of a memory mapped block gzip file as written by {@link BlockGzipOutputStream}. Workers claim members from a
+ * shared cursor and inflate them into a buffer of their own, with an {@link Inflater} of their own, so that
+ * decompression scales with the number of workers just like parsing.
+ * <p>
+ * {@link Inflater} rejects buffers of closeable shared arenas, so both the mapping passed in and the output buffers
+ * must belong to automatic arenas.
+ */
+final class GzipChunkSource implements ChunkSource {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final MemorySegment compressed;
+    private final BlockGzipOutputStream.Index index;
+    private final long[] positions;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<WorkerState> workerState = ThreadLocal.withInitial(this::newWorkerState);
+
+    GzipChunkSource(MemorySegment compressed, BlockGzipOutputStream.Index index) {
+        this.compressed = compressed;
+        this.index = index;
+        this.positions = new long[index.lengths().length];
+        for (int i = 1; i < positions.length; i++) {
+            positions[i] = positions[i - 1] + index.lengths()[i - 1];
+        }
+    }
+
+    private record WorkerState(Inflater inflater, MemorySegment buffer) {
+    }
+
+    private WorkerState newWorkerState() {
+        Inflater inflater = new Inflater(true);
+        inflaters.add(inflater);
+        return new WorkerState(inflater, Arena.ofAuto().allocate(index.maxLength() + 1 + Chunk.PADDING));
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+        int member = cursor.getAndIncrement();
+        if (member >= index.offsets().length) {
+            return null;
+        }
+        long start = index.offsets()[member];
+        long end = member + 1 < index.offsets().length ? index.offsets()[member + 1] : compressed.byteSize();
+        int length = index.lengths()[member];
+
+        WorkerState state = workerState.get();
+        ByteBuffer input = compressed.asSlice(start, end - start).asByteBuffer();
+        skipHeader(input);
+        Inflater inflater = state.inflater();
+        inflater.reset();
+        inflater.setInput(input);
+        ByteBuffer output = state.buffer().asByteBuffer().limit(length);
+        try {
+            while (output.hasRemaining()) {
+                if (inflater.inflate(output) == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new ZipException("Member " + member + " is shorter than indexed");
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw new ZipException("Member " + member + " is corrupt: " + e.getMessage());
+        }
+
+        if (length == 0) {
+            return next();
+        }
+        if (state.buffer().get(ValueLayout.JAVA_BYTE, length - 1) != '\n') {
+            // Tolerate a missing line break at the end of the input.
+            state.buffer().set(ValueLayout.JAVA_BYTE, length++, (byte) '\n');
+        }
+        return new Chunk(state.buffer(), 0, length, positions[member]);
+    }
+
+    // Advances past the gzip member header, see RFC 1952
+    private static void skipHeader(ByteBuffer input) throws ZipException {
+        if ((input.get() & 0xFF) != 0x1F || (input.get() & 0xFF) != 0x8B || input.get() != 8) {
+            throw new ZipException("Not a deflate compressed gzip member");
+        }
+        int flags = input.get();
+        input.position(input.position() + 6);
+        if ((flags & FEXTRA) != 0) {
+            int extraLength = (input.get() & 0xFF) | ((input.get() & 0xFF) << 8);
+            input.position(input.position() + extraLength);
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated(input);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated(input);
+        }
+        if ((flags & FHCRC) != 0) {
+            input.position(input.position() + 2);
+        }
+    }
+
+    private static void skipZeroTerminated(ByteBuffer input) {
+        byte b;
+        do {
+            b = input.get();
+        } while (b != 0);
+    }
+
+    @Override
+    public void close() {
+        for (Inflater inflater : inflaters) {
+            inflater.end();
+        }
+    }
+}
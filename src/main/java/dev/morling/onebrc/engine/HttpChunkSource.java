@@ -0,0 +1,320 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads an object from an HTTP server, such as an S3-compatible object store, with concurrent range requests for its
+ * segments, so that parsing starts with the first segment to arrive instead of after downloading the whole object.
+ * Requests are sent from virtual threads, with at most {@code concurrency} of them outstanding, each into a buffer from
+ * a fixed pool; as with {@link AsyncChunkSource}, each request extends {@link AsyncChunkSource#READ_AHEAD} bytes past
+ * its segment, so that segments can be parsed in any order of arrival.
+ * <p>
+ * Authentication is left to the URI, e.g. a pre-signed URL. Requests failing with an I/O error, a server error or
+ * {@code 429 Too Many Requests} are retried up to {@link #MAX_ATTEMPTS} times, after an exponential backoff from
+ * {@link #INITIAL_BACKOFF} with full jitter, so that the concurrent requests of a throttled run do not retry in
+ * lockstep. A {@code Retry-After} header of the response takes precedence over the backoff, up to
+ * {@link #MAX_RETRY_AFTER}. A response without the {@code Content-Range} of the requested range fails the run.
+ */
+final class HttpChunkSource implements ChunkSource {
+    static final int MAX_ATTEMPTS = 5;
+    static final Duration INITIAL_BACKOFF = Duration.ofMillis(100);
+    static final Duration MAX_RETRY_AFTER = Duration.ofMinutes(1);
+
+    private static final Object SKIPPED = new Object();
+
+    private final URI uri;
+    private final HttpClient client;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final long size;
+    private final long segments;
+    private final int segmentSize;
+    private final int concurrency;
+    private final Arena arena = Arena.ofShared();
+    private final BlockingQueue<MemorySegment> free;
+    // Chunks, SKIPPED or the failure of a request
+    private final BlockingQueue<Object> completed = new LinkedBlockingQueue<>();
+    private final AtomicLong taken = new AtomicLong();
+    // Guarded by this
+    private long cursor;
+    private int inFlight;
+
+    HttpChunkSource(URI uri, int segmentSize, int concurrency, int workers) throws IOException {
+        this.uri = uri;
+        this.client = HttpClient.newBuilder().executor(executor).followRedirects(HttpClient.Redirect.NORMAL).build();
+        this.segmentSize = segmentSize;
+        this.concurrency = concurrency;
+        this.size = contentLength();
+        this.segments = Math.ceilDiv(size, segmentSize);
+
+        int buffers = concurrency + workers;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(arena.allocate(segmentSize + AsyncChunkSource.READ_AHEAD + 1 + Chunk.PADDING));
+        }
+        submit();
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+        try {
+            while (taken.getAndIncrement() < segments) {
+                Object result = completed.take();
+                if (result instanceof Chunk chunk) {
+                    return chunk;
+                }
+                if (result instanceof Throwable failure) {
+                    // Leave the failure for the other workers
+                    completed.add(failure);
+                    throw new IOException("Fetching " + uri + " failed", failure);
+                }
+            }
+            return null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+    }
+
+    @Override
+    public void release(Chunk chunk) {
+        free.add(chunk.data());
+        submit();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        client.close();
+        arena.close();
+    }
+
+    /**
+     * Starts requests for the next segments while there are free buffers and fewer than {@code concurrency} requests
+     * outstanding.
+     */
+    private synchronized void submit() {
+        while (cursor < size && inFlight < concurrency) {
+            MemorySegment buffer = free.poll();
+            if (buffer == null) {
+                return;
+            }
+            long offset = cursor;
+            cursor += segmentSize;
+            inFlight++;
+            executor.execute(() -> {
+                Object result;
+                try {
+                    Chunk chunk = AsyncChunkSource.chunk(buffer, fetch(offset, buffer), offset, segmentSize, offset);
+                    if (chunk == null) {
+                        free.add(buffer);
+                    }
+                    result = chunk != null ? chunk : SKIPPED;
+                }
+                catch (IOException | RuntimeException e) {
+                    result = e;
+                }
+                synchronized (this) {
+                    inFlight--;
+                }
+                completed.add(result);
+                submit();
+            });
+        }
+    }
+
+    /**
+     * Fetches the segment at {@code offset} and the read-ahead after it into {@code buffer}, returning the number of
+     * bytes fetched.
+     */
+    private long fetch(long offset, MemorySegment buffer) throws IOException {
+        long last = Math.min(offset + segmentSize + AsyncChunkSource.READ_AHEAD, size) - 1;
+        String expectedRange = "bytes " + offset + "-" + last + "/";
+        // Only the body of the requested range is written into the buffer; that of an error is discarded
+        HttpResponse<Long> response = send(offset, last,
+                info -> info.statusCode() == 206 && info.headers().firstValue("Content-Range").orElse("").startsWith(expectedRange)
+                        ? new SegmentSubscriber(buffer.asSlice(0, last - offset + 1))
+                        : HttpResponse.BodySubscribers.replacing(-1L));
+        if (response.statusCode() != 206) {
+            throw new IOException("Expected partial content for range " + offset + "-" + last + ", got status " + response.statusCode());
+        }
+        // A server serving another range than requested would silently corrupt the result
+        String range = response.headers().firstValue("Content-Range").orElse(null);
+        if (range == null || !range.startsWith(expectedRange)) {
+            throw new IOException("Expected content range " + offset + "-" + last + ", got " + range);
+        }
+        return response.body();
+    }
+
+    /**
+     * Determines the size of the object from the {@code Content-Range} of a request for its first byte. Unlike a
+     * {@code HEAD} request, this also works with URLs pre-signed for {@code GET} only.
+     */
+    private long contentLength() throws IOException {
+        HttpResponse<Void> response = send(0, 0, HttpResponse.BodyHandlers.discarding());
+        // 416 for an empty object, with a Content-Range of "bytes */0"
+        if (response.statusCode() != 206 && response.statusCode() != 416) {
+            throw new IOException(uri + " does not support range requests, status " + response.statusCode());
+        }
+        String range = response.headers().firstValue("Content-Range")
+                .orElseThrow(() -> new IOException("No content range for " + uri));
+        try {
+            return Long.parseLong(range.substring(range.lastIndexOf('/') + 1));
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Cannot determine the size of " + uri + " from content range " + range, e);
+        }
+    }
+
+    // Requests the given range, retrying on I/O errors, server errors and throttling
+    private <T> HttpResponse<T> send(long first, long last, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri).header("Range", "bytes=" + first + "-" + last).build();
+        for (int attempt = 1;; attempt++) {
+            try {
+                Duration delay;
+                try {
+                    HttpResponse<T> response = client.send(request, bodyHandler);
+                    if ((response.statusCode() < 500 && response.statusCode() != 429) || attempt == MAX_ATTEMPTS) {
+                        return response;
+                    }
+                    delay = retryAfter(response);
+                }
+                catch (IOException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    delay = null;
+                }
+                Thread.sleep(delay != null ? delay : backoff(attempt));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching " + uri);
+            }
+        }
+    }
+
+    // A random delay between zero and INITIAL_BACKOFF doubled with every previous attempt
+    static Duration backoff(int attempt) {
+        long bound = INITIAL_BACKOFF.toMillis() << (attempt - 1);
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+
+    // The delay requested by the Retry-After header of the response, in seconds or as HTTP date, or null if none
+    static Duration retryAfter(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return null;
+        }
+        Duration delay;
+        try {
+            delay = Duration.ofSeconds(Long.parseLong(value.trim()));
+        }
+        catch (NumberFormatException e) {
+            try {
+                delay = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+            }
+            catch (DateTimeParseException unparsable) {
+                return null;
+            }
+        }
+        if (delay.isNegative()) {
+            return Duration.ZERO;
+        }
+        return delay.compareTo(MAX_RETRY_AFTER) > 0 ? MAX_RETRY_AFTER : delay;
+    }
+
+    /**
+     * Writes a response body into the given segment as it arrives, without buffering it on the heap, and completes
+     * with its length, which must be that of the segment.
+     */
+    private static final class SegmentSubscriber implements HttpResponse.BodySubscriber<Long> {
+        private final MemorySegment target;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long written;
+
+        SegmentSubscriber(MemorySegment target) {
+            this.target = target;
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                int length = buffer.remaining();
+                if (length > target.byteSize() - written) {
+                    subscription.cancel();
+                    result.completeExceptionally(new IOException("Expected " + target.byteSize() + " bytes, got more"));
+                    return;
+                }
+                MemorySegment.copy(MemorySegment.ofBuffer(buffer), 0, target, written, length);
+                written += length;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (written != target.byteSize()) {
+                result.completeExceptionally(new IOException("Expected " + target.byteSize() + " bytes, got " + written));
+            }
+            else {
+                result.complete(written);
+            }
+        }
+    }
+}
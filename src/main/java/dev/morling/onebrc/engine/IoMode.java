@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * How the engine reads input files, see {@link AggregationEngine.Builder#ioMode(IoMode)}.
+ */
+public enum IoMode {
+
+    /**
+     * Picks one of the other modes from the size of the input and how much of it is in the page cache. Linux only;
+     * elsewhere, input is always memory mapped.
+     */
+    AUTO,
+
+    /**
+     * Memory maps the files, optionally through a sliding window or with {@link MapOption}s.
+     */
+    MMAP,
+
+    /**
+     * Reads the files sequentially into reusable buffers, like input from a pipe.
+     */
+    BUFFERED,
+
+    /**
+     * Reads segments of the files with {@code AsynchronousFileChannel}, with a bounded number of reads outstanding
+     * while the workers parse, see {@link AggregationEngine.Builder#queueDepth(int)}.
+     */
+    ASYNC,
+
+    /**
+     * Reads the files with {@code O_DIRECT}, bypassing the page cache. Only supported on Linux, and by file systems
+     * which support direct I/O.
+     */
+    DIRECT
+}
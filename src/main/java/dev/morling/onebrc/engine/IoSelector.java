@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.List;
+
+/**
+ * Picks the {@link IoMode} for {@link IoMode#AUTO} from the size of the input and how much of it is in the page cache:
+ * <ul>
+ * <li>Small inputs are mapped, the choice makes no measurable difference for them.</li>
+ * <li>Mostly cached inputs are mapped, which reads the cached pages without copying them.</li>
+ * <li>Mostly uncached inputs which do not fit into the available memory are read with direct I/O: caching them would
+ * only evict other data, and read-ahead could not keep up anyway.</li>
+ * <li>Other uncached inputs are read into buffers, where the kernel's read-ahead serves large sequential reads, rather
+ * than taking a page fault per page of a mapping.</li>
+ * </ul>
+ * The choice and its reason are logged at {@code INFO} level, so that with the default logging configuration a run
+ * with {@code --io=auto} reports on standard error which mode it actually used.
+ */
+final class IoSelector {
+    private static final System.Logger LOGGER = System.getLogger(IoSelector.class.getName());
+
+    static final long SMALL_INPUT = 64L << 20;
+    static final double MOSTLY_CACHED = 0.5;
+
+    private IoSelector() {
+    }
+
+    static IoMode select(List<Path> files) throws IOException {
+        long size = 0;
+        for (Path file : files) {
+            size += Files.size(file);
+        }
+        if (size < SMALL_INPUT) {
+            return selected(IoMode.MMAP, "input of {0} bytes is small", size);
+        }
+        if (!LibC.isSupported()) {
+            return selected(IoMode.MMAP, "page cache residency cannot be determined on this platform", size);
+        }
+
+        long resident = 0;
+        for (Path file : files) {
+            resident += PageCache.residentBytes(file);
+        }
+        double cached = (double) resident / size;
+        if (cached >= MOSTLY_CACHED) {
+            return selected(IoMode.MMAP, "{1} of {0} bytes are cached", size, resident);
+        }
+        long available = availableMemory();
+        if (size - resident > available) {
+            if (!supportsDirectIo(files.get(0))) {
+                return selected(IoMode.BUFFERED, "{2} uncached bytes of {0} exceed the available memory of {1} bytes, but the file system does not support direct I/O",
+                        size, available, size - resident);
+            }
+            return selected(IoMode.DIRECT, "{2} uncached bytes of {0} exceed the available memory of {1} bytes", size, available, size - resident);
+        }
+        return selected(IoMode.BUFFERED, "only {1} of {0} bytes are cached", size, resident);
+    }
+
+    private static IoMode selected(IoMode mode, String reason, Object... arguments) {
+        LOGGER.log(System.Logger.Level.INFO, "Selected I/O mode {0}: {1}", mode, MessageFormat.format(reason, arguments));
+        return mode;
+    }
+
+    private static boolean supportsDirectIo(Path file) {
+        try (var arena = Arena.ofConfined()) {
+            MemorySegment callState = LibC.newCallState(arena);
+            LibC.close(LibC.open(callState, file, LibC.O_RDONLY | LibC.O_DIRECT));
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    // MemAvailable from /proc/meminfo, i.e. free memory plus reclaimable caches
+    private static long availableMemory() throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc/meminfo"))) {
+            if (line.startsWith("MemAvailable:")) {
+                return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+}
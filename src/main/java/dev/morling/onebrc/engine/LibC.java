@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+
+/**
+ * The few C library functions the engine calls through the foreign function API. Linux only; the flag values are
+ * those of x86-64 and AArch64 unless noted otherwise.
+ * <p>
+ * Functions which report errors via {@code errno} take a call state segment allocated with {@link #newCallState(Arena)}
+ * as their first argument, from which {@link #error(MemorySegment)} describes the error of the last failed call.
+ */
+final class LibC {
+    static final int O_RDONLY = 0;
+    static final int O_DIRECT = System.getProperty("os.arch").equals("aarch64") ? 0x10000 : 0x4000;
+    static final int PROT_READ = 1;
+    static final int MAP_PRIVATE = 0x02;
+    static final int MAP_POPULATE = 0x8000;
+    static final int MADV_SEQUENTIAL = 2;
+    static final int MADV_WILLNEED = 3;
+    static final int MADV_DONTNEED = 4;
+    static final int MADV_HUGEPAGE = 14;
+    static final int POSIX_FADV_DONTNEED = 4;
+    static final long MAP_FAILED = -1;
+    static final int PAGE_SIZE = 4096;
+    static final int EINTR = 4;
+
+    private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+    private static final VarHandle ERRNO = CALL_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+
+    private static final MethodHandle OPEN;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle PREAD;
+    private static final MethodHandle MMAP;
+    private static final MethodHandle MUNMAP;
+    private static final MethodHandle MADVISE;
+    private static final MethodHandle POSIX_FADVISE;
+    private static final MethodHandle MINCORE;
+    private static final MethodHandle STRERROR;
+
+    static {
+        if (isSupported()) {
+            Linker linker = Linker.nativeLinker();
+            Linker.Option errno = Linker.Option.captureCallState("errno");
+            OPEN = downcall(linker, "open", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT), errno);
+            CLOSE = downcall(linker, "close", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+            PREAD = downcall(linker, "pread", FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG,
+                    ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG), errno);
+            MMAP = downcall(linker, "mmap", FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG,
+                    ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG), errno);
+            MUNMAP = downcall(linker, "munmap", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG));
+            MADVISE = downcall(linker, "madvise", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG,
+                    ValueLayout.JAVA_INT), errno);
+            POSIX_FADVISE = downcall(linker, "posix_fadvise", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+                    ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+            MINCORE = downcall(linker, "mincore", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG,
+                    ValueLayout.JAVA_LONG), errno);
+            STRERROR = downcall(linker, "strerror", FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+        }
+        else {
+            OPEN = CLOSE = PREAD = MMAP = MUNMAP = MADVISE = POSIX_FADVISE = MINCORE = STRERROR = null;
+        }
+    }
+
+    private LibC() {
+    }
+
+    static boolean isSupported() {
+        return System.getProperty("os.name").startsWith("Linux");
+    }
+
+    static MemorySegment newCallState(Arena arena) {
+        return arena.allocate(CALL_STATE);
+    }
+
+    /**
+     * Opens the given file, returning the file descriptor.
+     */
+    static int open(MemorySegment callState, Path file, int flags) throws IOException {
+        try (var arena = Arena.ofConfined()) {
+            int fd = (int) OPEN.invokeExact(callState, arena.allocateUtf8String(file.toString()), flags);
+            if (fd < 0) {
+                throw new IOException("Cannot open " + file + ": " + error(callState));
+            }
+            return fd;
+        }
+        catch (IOException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void close(int fd) {
+        try {
+            int ignored = (int) CLOSE.invokeExact(fd);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes read, {@code 0} at the end of the file, or {@code -1} on failure.
+     */
+    static long pread(MemorySegment callState, int fd, long address, long count, long offset) {
+        try {
+            return (long) PREAD.invokeExact(callState, fd, address, count, offset);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the address of the mapping, or {@link #MAP_FAILED}.
+     */
+    static long mmap(MemorySegment callState, long length, int prot, int flags, int fd, long offset) {
+        try {
+            return (long) MMAP.invokeExact(callState, 0L, length, prot, flags, fd, offset);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void munmap(long address, long length) {
+        try {
+            int ignored = (int) MUNMAP.invokeExact(address, length);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns {@code 0} on success, {@code -1} on failure.
+     */
+    static int madvise(MemorySegment callState, long address, long length, int advice) {
+        try {
+            return (int) MADVISE.invokeExact(callState, address, length, advice);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns {@code 0} on success, or the error number on failure; {@code posix_fadvise} does not set
+     * {@code errno}.
+     */
+    static int posixFadvise(int fd, long offset, long length, int advice) {
+        try {
+            return (int) POSIX_FADVISE.invokeExact(fd, offset, length, advice);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Fills {@code vector} with one byte per page of the given range, the lowest bit of which is set if the page is
+     * resident. Returns {@code 0} on success, {@code -1} on failure.
+     */
+    static int mincore(MemorySegment callState, long address, long length, long vector) {
+        try {
+            return (int) MINCORE.invokeExact(callState, address, length, vector);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int errno(MemorySegment callState) {
+        return (int) ERRNO.get(callState);
+    }
+
+    /**
+     * Describes the error of the last failed call made with the given call state.
+     */
+    static String error(MemorySegment callState) {
+        return error(errno(callState));
+    }
+
+    static String error(int errno) {
+        try {
+            MemorySegment message = (MemorySegment) STRERROR.invokeExact(errno);
+            return message.reinterpret(Long.MAX_VALUE).getUtf8String(0) + " (errno " + errno + ")";
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle downcall(Linker linker, String name, FunctionDescriptor descriptor, Linker.Option... options) {
+        MemorySegment symbol = linker.defaultLookup().find(name).orElseThrow(() -> new IllegalStateException("Symbol not found: " + name));
+        return linker.downcallHandle(symbol, descriptor, options);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Options for mapping input files with {@code mmap(2)} directly instead of {@code FileChannel.map()}, see
+ * {@link AggregationEngine.Builder#mapOptions(java.util.Set)}. Only supported on Linux.
+ */
+public enum MapOption {
+
+    /**
+     * Pre-faults the whole mapping ({@code MAP_POPULATE}), so that workers do not take a page fault per 4 KB page. The
+     * file is read into the page cache if it is not resident yet, before any worker starts.
+     */
+    POPULATE,
+
+    /**
+     * Advises the kernel that the mapping is read sequentially ({@code MADV_SEQUENTIAL}), which enables aggressive
+     * read-ahead and early reclaim of pages behind the reader.
+     */
+    SEQUENTIAL,
+
+    /**
+     * Asks for transparent huge pages ({@code MADV_HUGEPAGE}). For file mappings, this only takes effect on kernels
+     * with huge page support for the page cache of the file system, otherwise the advice is ignored.
+     */
+    HUGE_PAGES
+}
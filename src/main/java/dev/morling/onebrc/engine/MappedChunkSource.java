@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work stealing over one or more memory mapped files: each call claims the next segment of {@code segmentSize} bytes
+ * from a shared cursor and widens it to line boundaries. A line belongs to the segment in which it ends. The last
+ * segment of a file is copied into a padded buffer, as the mapping itself cannot be read past its end.
+ * <p>
+ * All files share one cursor space, in which each file starts at a multiple of the segment size. Segments thus never
+ * span two files, and workers move on to the next file as soon as a file has no unclaimed segments left, without
+ * waiting for the other workers.
+ */
+final class MappedChunkSource implements ChunkSource {
+    private final MemorySegment[] files;
+    private final long[] fileStarts;
+    private final long totalSize;
+    private final int segmentSize;
+    private final AtomicLong cursor = new AtomicLong();
+    private final SegmentReleaser releaser;
+    private final SegmentChecksums checksums;
+
+    MappedChunkSource(MemorySegment data, int segmentSize) {
+        this(List.of(data), segmentSize, false, false);
+    }
+
+    /**
+     * @param releaseEarly whether to release the pages of processed segments during the run, see
+     *                     {@link SegmentReleaser}
+     * @param checksum     whether to compute the CRC32C checksums of the files while processing them, see
+     *                     {@link SegmentChecksums}
+     */
+    MappedChunkSource(List<MemorySegment> files, int segmentSize, boolean releaseEarly, boolean checksum) {
+        this.files = files.toArray(MemorySegment[]::new);
+        this.fileStarts = new long[this.files.length];
+        this.segmentSize = segmentSize;
+        long position = 0;
+        for (int i = 0; i < this.files.length; i++) {
+            fileStarts[i] = position;
+            position += Math.ceilDiv(this.files[i].byteSize(), segmentSize) * segmentSize;
+        }
+        this.totalSize = position;
+        this.releaser = releaseEarly ? new SegmentReleaser(this.files, fileStarts, segmentSize) : null;
+        this.checksums = checksum ? new SegmentChecksums(this.files, fileStarts, segmentSize) : null;
+    }
+
+    @Override
+    public Chunk next() {
+        while (true) {
+            long claimed = cursor.getAndAdd(segmentSize);
+            if (claimed >= totalSize) {
+                return null;
+            }
+
+            int file = file(claimed);
+            MemorySegment data = files[file];
+            long size = data.byteSize();
+            long current = claimed - fileStarts[file];
+            if (current >= size) {
+                continue;
+            }
+
+            long start = current == 0 ? 0 : nextNewLine(data, current) + 1;
+            long end = nextNewLine(data, Math.min(size - 1, current + segmentSize)) + 1;
+            if (start >= end) {
+                // The segment lies entirely within a line owned by the previous segment.
+                done(file, claimed);
+                continue;
+            }
+            if (end + Chunk.PADDING > size) {
+                return padded(data, start, end, claimed);
+            }
+            return new Chunk(data, start, end, claimed);
+        }
+    }
+
+    /**
+     * Creates a prefetcher running {@code distance} bytes ahead of the cursor of this source, to be started before the
+     * workers.
+     */
+    Prefetcher prefetcher(long distance, PrefetchMode mode) {
+        return new Prefetcher(files, fileStarts, totalSize, cursor, distance, mode);
+    }
+
+    /**
+     * Returns the CRC32C checksum of the file with the given index, once all workers are done.
+     */
+    long checksum(int file) {
+        return checksums.checksum(file);
+    }
+
+    @Override
+    public void release(Chunk chunk) {
+        done(file(chunk.position()), chunk.position());
+    }
+
+    private void done(int file, long position) {
+        if (checksums != null) {
+            // Before the pages are released
+            checksums.update(file, position);
+        }
+        if (releaser != null) {
+            releaser.done(file, position);
+        }
+    }
+
+    private int file(long position) {
+        int file = Arrays.binarySearch(fileStarts, position);
+        return file < 0 ? -file - 2 : file;
+    }
+
+    static Chunk padded(MemorySegment data, long start, long end, long position) {
+        long length = end - start;
+        MemorySegment copy = Arena.ofAuto().allocate(length + 1 + Chunk.PADDING);
+        MemorySegment.copy(data, start, copy, 0, length);
+        if (data.get(ValueLayout.JAVA_BYTE, end - 1) != '\n') {
+            // Tolerate a missing line break at the end of the file.
+            copy.set(ValueLayout.JAVA_BYTE, length++, (byte) '\n');
+        }
+        return new Chunk(copy, 0, length, position);
+    }
+
+    /**
+     * Returns the position of the next '\n' at or after {@code position}, or the last position of the file if there is
+     * none.
+     */
+    static long nextNewLine(MemorySegment data, long position) {
+        while (position < data.byteSize() - 1 && data.get(ValueLayout.JAVA_BYTE, position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares wall time and page faults of a full run over a file mapped with {@code FileChannel.map()} against the
+ * {@link NativeMapper} with each of the {@link MapOption}s. Page faults are those of the whole process, as reported in
+ * {@code /proc/self/stat}, and thus include a small amount of noise from the JVM itself. Run with:
+ *
+ * <pre>
+ * java --enable-preview --enable-native-access=ALL-UNNAMED --add-modules jdk.incubator.vector \
+ *     -cp target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.engine.MappingBenchmark [file] [runs]
+ * </pre>
+ */
+public final class MappingBenchmark {
+
+    private interface Mapper {
+        MemorySegment map(Path file, long size, Arena arena) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path file = Path.of(args.length > 0 ? args[0] : "./measurements.txt");
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Map<String, Mapper> mappers = new LinkedHashMap<>();
+        mappers.put("FileChannel.map", (f, size, arena) -> {
+            try (var channel = FileChannel.open(f, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+            }
+        });
+        mappers.put("mmap", mmap(EnumSet.noneOf(MapOption.class)));
+        for (MapOption option : MapOption.values()) {
+            mappers.put("mmap " + option, mmap(EnumSet.of(option)));
+        }
+        mappers.put("mmap " + EnumSet.allOf(MapOption.class), mmap(EnumSet.allOf(MapOption.class)));
+
+        AggregationEngine engine = AggregationEngine.builder().build();
+        long size = Files.size(file);
+        // Warm up the kernels and the page cache
+        run(engine, mappers.get("FileChannel.map"), file, size);
+
+        System.out.printf("%-45s %10s %10s %14s %12s%n", "mapping", "best ms", "mean ms", "minor faults", "major faults");
+        for (Map.Entry<String, Mapper> mapper : mappers.entrySet()) {
+            long best = Long.MAX_VALUE;
+            long total = 0;
+            long minorFaults = 0;
+            long majorFaults = 0;
+            for (int i = 0; i < runs; i++) {
+                long[] faultsBefore = Prefetcher.pageFaults(Path.of("/proc/self/stat"));
+                long start = System.nanoTime();
+                run(engine, mapper.getValue(), file, size);
+                long elapsed = System.nanoTime() - start;
+                long[] faultsAfter = Prefetcher.pageFaults(Path.of("/proc/self/stat"));
+                best = Math.min(best, elapsed);
+                total += elapsed;
+                minorFaults += faultsAfter[0] - faultsBefore[0];
+                majorFaults += faultsAfter[1] - faultsBefore[1];
+            }
+            System.out.printf("%-45s %10d %10d %14d %12d%n", mapper.getKey(), best / 1_000_000, total / runs / 1_000_000,
+                    minorFaults / runs, majorFaults / runs);
+        }
+    }
+
+    private static Mapper mmap(Set<MapOption> options) {
+        return (file, size, arena) -> NativeMapper.map(file, size, options, arena);
+    }
+
+    private static void run(AggregationEngine engine, Mapper mapper, Path file, long size) throws IOException {
+        try (var arena = Arena.ofShared()) {
+            engine.aggregate(new MappedChunkSource(mapper.map(file, size, arena), AggregationEngine.DEFAULT_SEGMENT_SIZE));
+        }
+    }
+}
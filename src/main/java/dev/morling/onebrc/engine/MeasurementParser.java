@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Parses all lines of a {@link Chunk} into a {@link StationTable}. Implementations differ in how they locate the
+ * delimiter and hash and compare the names; each worker thread uses its own instance.
+ */
+interface MeasurementParser {
+
+    void parse(Chunk chunk, StationTable table);
+
+    /**
+     * Returns the distance between the slots probed after a collision, which tables follow when re-inserting their
+     * entries as they grow. Must be odd, so that the probes visit every slot.
+     */
+    default int probeStride() {
+        return 1;
+    }
+}
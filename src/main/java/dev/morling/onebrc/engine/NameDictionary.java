@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The station names of previous runs, persisted in a file, for inputs whose set of stations hardly changes between
+ * runs. Each name has a dense ID, its position in the file. Before parsing, every worker preloads the names into its
+ * table in ID order, by running its parser over one line per name, so that the entries get the slots of the parser's
+ * own hash and the table is sized for them up front. The first entries of every table are thus the dictionary's names
+ * by ID, which lets the final merge combine them through an array instead of map lookups, and reuse the names decoded
+ * once when the dictionary was read. Names a run adds are appended to the file; names without measurements in a run
+ * keep their ID, but do not appear in its result.
+ * <p>
+ * The file is memory mapped for reading and replaced atomically when written, like a {@link Checkpoint}. It consists of
+ * a header, the number of names, and each name's UTF-8 bytes prefixed by their length, all big-endian.
+ */
+final class NameDictionary {
+    private static final int MAGIC = 0x31425244; // "1BRD"
+    private static final int VERSION = 1;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final byte[] PRELOAD_VALUE = ";0.0\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path file;
+    private final String[] names;
+    // One line per name, "<name>;0.0\n", for preloading the tables
+    private final MemorySegment lines;
+    private final long[] lineStarts;
+    private Set<String> known;
+
+    private NameDictionary(Path file, List<byte[]> names) {
+        this.file = file;
+        this.names = new String[names.size()];
+        this.lineStarts = new long[names.size() + 1];
+        long size = 0;
+        for (int id = 0; id < names.size(); id++) {
+            this.names[id] = new String(names.get(id), StandardCharsets.UTF_8);
+            lineStarts[id] = size;
+            size += names.get(id).length + PRELOAD_VALUE.length;
+        }
+        lineStarts[names.size()] = size;
+        this.lines = Arena.ofAuto().allocate(size + Chunk.PADDING);
+        for (int id = 0; id < names.size(); id++) {
+            byte[] name = names.get(id);
+            MemorySegment.copy(name, 0, lines, ValueLayout.JAVA_BYTE, lineStarts[id], name.length);
+            MemorySegment.copy(PRELOAD_VALUE, 0, lines, ValueLayout.JAVA_BYTE, lineStarts[id] + name.length, PRELOAD_VALUE.length);
+        }
+    }
+
+    /**
+     * Reads the dictionary from the given file, or returns an empty dictionary if the file does not exist.
+     */
+    static NameDictionary read(Path file) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        if (Files.exists(file)) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ); var arena = Arena.ofConfined()) {
+                MemorySegment data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                if (data.byteSize() < 3 * Integer.BYTES || data.get(INT, 0) != MAGIC || data.get(INT, Integer.BYTES) != VERSION) {
+                    throw new IOException("Not a station dictionary: " + file);
+                }
+                int count = data.get(INT, 2 * Integer.BYTES);
+                long offset = 3 * Integer.BYTES;
+                for (int id = 0; id < count; id++) {
+                    int length = Short.toUnsignedInt(data.get(SHORT, offset));
+                    names.add(data.asSlice(offset + Short.BYTES, length).toArray(ValueLayout.JAVA_BYTE));
+                    offset += Short.BYTES + length;
+                }
+            }
+        }
+        return new NameDictionary(file, names);
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Whether the given name is in the dictionary.
+     */
+    boolean contains(String name) {
+        if (known == null) {
+            known = new HashSet<>(List.of(names));
+        }
+        return known.contains(name);
+    }
+
+    /**
+     * Inserts all names into the given empty table, in ID order, with the given parser.
+     */
+    void preload(MeasurementParser parser, StationTable table) throws IOException {
+        for (int id = 0; id < names.length; id++) {
+            parser.parse(new Chunk(lines, lineStarts[id], lineStarts[id + 1], id), table);
+        }
+        if (table.size() != names.length) {
+            throw new IOException("Station dictionary " + file + " contains duplicate names");
+        }
+        table.reset();
+    }
+
+    /**
+     * Merges tables preloaded with this dictionary, and appends the names first seen in this run to the file.
+     */
+    SortedMap<String, StationStats> merge(StationTable[] tables) throws IOException {
+        StationStats[] byId = new StationStats[names.length];
+        TreeMap<String, StationStats> result = new TreeMap<>();
+        for (StationTable table : tables) {
+            for (int id = 0; id < names.length; id++) {
+                long entry = table.entry(id);
+                if (table.count(entry) == 0) {
+                    continue;
+                }
+                if (byId[id] == null) {
+                    byId[id] = table.toStats(entry);
+                }
+                else {
+                    byId[id].accumulate(table.toStats(entry));
+                }
+            }
+            table.mergeInto(result, names.length);
+        }
+        List<String> added = new ArrayList<>(result.keySet());
+        for (int id = 0; id < names.length; id++) {
+            if (byId[id] != null) {
+                result.put(names[id], byId[id]);
+            }
+        }
+        append(added);
+        return result;
+    }
+
+    /**
+     * Appends the given names to the file, skipping those already in the dictionary.
+     */
+    void update(Collection<String> seen) throws IOException {
+        Set<String> known = new HashSet<>(List.of(names));
+        List<String> added = new ArrayList<>();
+        for (String name : seen) {
+            if (!known.contains(name)) {
+                added.add(name);
+            }
+        }
+        append(added);
+    }
+
+    private void append(List<String> added) throws IOException {
+        if (added.isEmpty()) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length + added.size());
+            for (String name : names) {
+                writeName(out, name);
+            }
+            for (String name : added) {
+                writeName(out, name);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Maps files by calling {@code mmap(2)} and {@code madvise(2)} through {@link LibC}, which, unlike
+ * {@code FileChannel.map()}, allows controlling how the mapping is faulted in, see {@link MapOption}. Linux only.
+ */
+final class NativeMapper {
+    private static final System.Logger LOGGER = System.getLogger(NativeMapper.class.getName());
+
+    private NativeMapper() {
+    }
+
+    /**
+     * Maps the given file read-only. The mapping is unmapped when {@code arena} is closed.
+     *
+     * @throws IOException if the file cannot be opened or mapped; failing advice is only logged, as it does not
+     *                     affect the result
+     */
+    static MemorySegment map(Path file, long size, Set<MapOption> options, Arena arena) throws IOException {
+        if (!LibC.isSupported()) {
+            throw new UnsupportedOperationException("Native mapping is only supported on Linux");
+        }
+        try (var local = Arena.ofConfined()) {
+            MemorySegment callState = LibC.newCallState(local);
+            int fd = LibC.open(callState, file, LibC.O_RDONLY);
+            long address;
+            try {
+                int flags = LibC.MAP_PRIVATE | (options.contains(MapOption.POPULATE) ? LibC.MAP_POPULATE : 0);
+                address = LibC.mmap(callState, size, LibC.PROT_READ, flags, fd, 0);
+            }
+            finally {
+                // The mapping keeps its own reference to the file
+                LibC.close(fd);
+            }
+            if (address == LibC.MAP_FAILED) {
+                throw new IOException("Cannot map " + file + ": " + LibC.error(callState));
+            }
+
+            if (options.contains(MapOption.SEQUENTIAL)) {
+                advise(callState, address, size, LibC.MADV_SEQUENTIAL, file);
+            }
+            if (options.contains(MapOption.HUGE_PAGES)) {
+                advise(callState, address, size, LibC.MADV_HUGEPAGE, file);
+            }
+            return MemorySegment.ofAddress(address).reinterpret(size, arena, segment -> LibC.munmap(address, size));
+        }
+    }
+
+    private static void advise(MemorySegment callState, long address, long size, int advice, Path file) {
+        if (LibC.madvise(callState, address, size, advice) != 0) {
+            LOGGER.log(System.Logger.Level.DEBUG, "madvise({0}) for {1} failed: {2}", advice, file, LibC.error(callState));
+        }
+    }
+}
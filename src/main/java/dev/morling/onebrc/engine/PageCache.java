@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Page cache inspection and control. Residency is used for selecting how to read input files, see
+ * {@link IoMode#AUTO}, and eviction by {@code evaluate.sh --cold} to run each fork against input which is not cached.
+ * Eviction uses {@code posix_fadvise(POSIX_FADV_DONTNEED)}, which, unlike dropping all caches via
+ * {@code /proc/sys/vm/drop_caches}, requires no root permissions. Linux only. Run with:
+ *
+ * <pre>
+ * java --enable-preview --enable-native-access=ALL-UNNAMED -cp target/average-1.0.0-SNAPSHOT.jar \
+ *     dev.morling.onebrc.engine.PageCache evict|resident measurements_1B.txt
+ * </pre>
+ */
+public final class PageCache {
+    // Bytes of a file mapped at a time for querying residency
+    private static final long RESIDENCY_WINDOW = 1L << 30;
+
+    private PageCache() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("evict") || args[0].equals("resident"))) {
+            System.err.println("Usage: PageCache evict|resident <file> ...");
+            System.exit(1);
+        }
+        for (int i = 1; i < args.length; i++) {
+            Path file = Path.of(args[i]);
+            if (args[0].equals("evict")) {
+                evict(file);
+            }
+            else {
+                System.out.println(file + ": " + residentBytes(file) + " bytes resident");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the given file which are in the page cache, as reported by {@code mincore(2)} for
+     * a mapping of the file. Mapping the file does not fault in any pages, so this is cheap even for large files.
+     */
+    public static long residentBytes(Path file) throws IOException {
+        if (!LibC.isSupported()) {
+            throw new UnsupportedOperationException("Querying the page cache is only supported on Linux");
+        }
+        try (var arena = Arena.ofConfined()) {
+            MemorySegment callState = LibC.newCallState(arena);
+            MemorySegment vector = arena.allocate(RESIDENCY_WINDOW / LibC.PAGE_SIZE);
+            int fd = LibC.open(callState, file, LibC.O_RDONLY);
+            try {
+                long size;
+                try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    size = channel.size();
+                }
+                long resident = 0;
+                for (long offset = 0; offset < size; offset += RESIDENCY_WINDOW) {
+                    long length = Math.min(RESIDENCY_WINDOW, size - offset);
+                    long address = LibC.mmap(callState, length, LibC.PROT_READ, LibC.MAP_PRIVATE, fd, offset);
+                    if (address == LibC.MAP_FAILED) {
+                        throw new IOException("Cannot map " + file + ": " + LibC.error(callState));
+                    }
+                    try {
+                        if (LibC.mincore(callState, address, length, vector.address()) != 0) {
+                            throw new IOException("Cannot query residency of " + file + ": " + LibC.error(callState));
+                        }
+                    }
+                    finally {
+                        LibC.munmap(address, length);
+                    }
+                    long pages = Math.ceilDiv(length, LibC.PAGE_SIZE);
+                    for (long page = 0; page < pages; page++) {
+                        if ((vector.get(ValueLayout.JAVA_BYTE, page) & 1) != 0) {
+                            resident += LibC.PAGE_SIZE;
+                        }
+                    }
+                }
+                return Math.min(resident, size);
+            }
+            finally {
+                LibC.close(fd);
+            }
+        }
+    }
+
+    /**
+     * Removes the pages of the given file from the page cache. Dirty pages are written back first, as they cannot be
+     * dropped otherwise.
+     */
+    public static void evict(Path file) throws IOException {
+        if (!LibC.isSupported()) {
+            throw new UnsupportedOperationException("Evicting files from the page cache is only supported on Linux");
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(false);
+        }
+        try (var arena = Arena.ofConfined()) {
+            MemorySegment callState = LibC.newCallState(arena);
+            int fd = LibC.open(callState, file, LibC.O_RDONLY);
+            try {
+                int error = LibC.posixFadvise(fd, 0, 0, LibC.POSIX_FADV_DONTNEED);
+                if (error != 0) {
+                    throw new IOException("Cannot evict " + file + ": " + LibC.error(error));
+                }
+            }
+            finally {
+                LibC.close(fd);
+            }
+        }
+    }
+}
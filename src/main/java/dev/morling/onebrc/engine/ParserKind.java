@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * The line parsing kernels the engine can run with.
+ */
+public enum ParserKind {
+
+    /**
+     * Picks one of the other kernels by timing each of them on a sample of the input.
+     */
+    AUTO,
+
+    /**
+     * Word-wise delimiter search and branchless number conversion over {@code sun.misc.Unsafe}, as used by
+     * {@code CalculateAverage_thomaswue}.
+     */
+    SWAR,
+
+    /**
+     * The {@link #SWAR} kernel reading through {@code java.lang.foreign.MemorySegment} only, for environments where
+     * {@code sun.misc.Unsafe} must not be used.
+     * <p>
+     * Its reads are bounds and liveness checked. The liveness checks are hoisted out of the loop over stations already in
+     * the table, but the bounds checks are not, as the JIT removes them from counted loops only. On
+     * {@code measurements_1B.txt}, on one core, it takes about a quarter longer than {@link #SWAR}.
+     */
+    SWAR_SEGMENT,
+
+    /**
+     * Delimiter search and name comparison with the incubating Vector API, as used by {@code CalculateAverage_merykitty}.
+     * Requires {@code --add-modules jdk.incubator.vector}.
+     */
+    VECTOR,
+
+    /**
+     * Plain byte by byte parsing, which does not depend on any particular hardware support.
+     */
+    SCALAR
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Maps {@link ParserKind}s to parser instances, configured for the given sample of the input, and resolves {@link ParserKind#AUTO} by timing the available kernels on
+ * a prefix of the first chunk. All kernels are first warmed up on the sample, so that the timings compare compiled
+ * code rather than the order in which the kernels were compiled, and then run a few timed rounds each, the best round
+ * counting. Warm-up and timed rounds take turns between the kernels, so that none of them profits from running last.
+ * Each kernel fills a table of its own, allocated once and cleared between rounds, so that the rounds time parsing
+ * rather than allocating tables, and from the second round on, updating stations rather than inserting them.
+ * The selection remains a heuristic, so a kernel can also be chosen explicitly.
+ */
+final class ParserSelector {
+    private static final System.Logger LOGGER = System.getLogger(ParserSelector.class.getName());
+    private static final int CALIBRATION_BYTES = 256 * 1024;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int CALIBRATION_ROUNDS = 5;
+
+    private ParserSelector() {
+    }
+
+    static Supplier<MeasurementParser> factory(ParserKind kind, Chunk sample) {
+        return switch (kind) {
+            case SWAR -> SwarParser::new;
+            case SWAR_SEGMENT -> SegmentSwarParser::new;
+            case VECTOR -> VectorDispatch.forSample(prefix(sample, CALIBRATION_BYTES))::newParser;
+            case SCALAR -> ScalarParser::new;
+            case AUTO -> throw new IllegalArgumentException("AUTO must be resolved before creating parsers");
+        };
+    }
+
+    static boolean vectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    static ParserKind select(Chunk sample, boolean allowUnsafe) {
+        Chunk calibration = prefix(sample, CALIBRATION_BYTES);
+        List<ParserKind> candidates = new ArrayList<>(List.of(ParserKind.SWAR_SEGMENT, ParserKind.SCALAR));
+        if (allowUnsafe) {
+            candidates.add(ParserKind.SWAR);
+        }
+        if (vectorApiAvailable()) {
+            candidates.add(ParserKind.VECTOR);
+        }
+
+        MeasurementParser[] parsers = new MeasurementParser[candidates.size()];
+        StationTable[] tables = new StationTable[parsers.length];
+        long[] best = new long[parsers.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        try {
+            for (int i = 0; i < parsers.length; i++) {
+                parsers[i] = factory(candidates.get(i), calibration).get();
+                tables[i] = new StationTable(parsers[i]);
+            }
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                for (int i = 0; i < parsers.length; i++) {
+                    parsers[i].parse(calibration, tables[i]);
+                    tables[i].reset();
+                }
+            }
+            for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+                for (int i = 0; i < parsers.length; i++) {
+                    long start = System.nanoTime();
+                    parsers[i].parse(calibration, tables[i]);
+                    best[i] = Math.min(best[i], System.nanoTime() - start);
+                    tables[i].reset();
+                }
+            }
+        }
+        finally {
+            for (StationTable table : tables) {
+                if (table != null) {
+                    table.close();
+                }
+            }
+        }
+
+        ParserKind fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < parsers.length; i++) {
+            LOGGER.log(System.Logger.Level.DEBUG, "Parser {0} took {1} ns for {2} bytes", candidates.get(i), best[i],
+                    calibration.end() - calibration.start());
+            if (best[i] < fastestNanos) {
+                fastest = candidates.get(i);
+                fastestNanos = best[i];
+            }
+        }
+        LOGGER.log(System.Logger.Level.DEBUG, "Selected parser {0}", fastest);
+        return fastest;
+    }
+
+    /**
+     * Returns the lines of the given chunk within roughly its first {@code maxBytes} bytes.
+     */
+    static Chunk prefix(Chunk chunk, long maxBytes) {
+        long end = chunk.start() + maxBytes;
+        if (end >= chunk.end()) {
+            return chunk;
+        }
+        while (chunk.data().get(ValueLayout.JAVA_BYTE, end) != '\n') {
+            end++;
+        }
+        return new Chunk(chunk.data(), chunk.start(), end + 1, chunk.position());
+    }
+}
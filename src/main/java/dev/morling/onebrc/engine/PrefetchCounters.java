@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * What the prefetcher did during a run, for tuning the prefetch distance: a prefetcher which {@code fellBehind} often
+ * is too slow for the workers, and the faults it absorbed are the ones the workers did not have to take.
+ *
+ * @param pages       the number of pages touched or advised
+ * @param fellBehind  how often the workers overtook the prefetcher, which then skipped ahead to the cursor
+ * @param minorFaults the minor page faults taken by the prefetcher thread, or -1 if the system does not report them
+ * @param majorFaults the major page faults taken by the prefetcher thread, i.e. pages read from disk, or -1 if the
+ *                        system does not report them
+ */
+public record PrefetchCounters(long pages, long fellBehind, long minorFaults, long majorFaults) {
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * How the {@link AggregationEngine.Builder#prefetch(long, PrefetchMode) prefetcher} makes pages ahead of the workers
+ * resident.
+ */
+public enum PrefetchMode {
+
+    /**
+     * Reads one byte of each page, taking the page faults in the prefetcher thread instead of the workers.
+     */
+    TOUCH,
+
+    /**
+     * Advises the kernel to read the pages ahead ({@code MADV_WILLNEED}). This avoids reads from disk in the workers,
+     * but not the minor faults which map cached pages into the process. Linux only.
+     */
+    WILLNEED
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prefetcher thread which keeps the pages up to {@code distance} bytes ahead of the shared segment cursor of a
+ * {@link MappedChunkSource} resident, so that the workers' parse loops are not stalled by page faults. See
+ * {@link PrefetchMode} for the ways of doing so.
+ */
+final class Prefetcher implements AutoCloseable {
+    // Bytes warmed before looking at the cursor again
+    private static final long STEP = 1 << 20;
+    private static final long IDLE_NANOS = 50_000;
+    private static final Path THREAD_STAT = Path.of("/proc/thread-self/stat");
+
+    private final MemorySegment[] files;
+    private final long[] fileStarts;
+    private final long totalSize;
+    private final AtomicLong cursor;
+    private final long distance;
+    private final PrefetchMode mode;
+    private final Thread thread;
+    private volatile boolean stopped;
+    private long pages;
+    private long fellBehind;
+    private long[] faults = { -1, -1 };
+    // Keeps the reads of TOUCH from being eliminated
+    private int sink;
+
+    Prefetcher(MemorySegment[] files, long[] fileStarts, long totalSize, AtomicLong cursor, long distance, PrefetchMode mode) {
+        this.files = files;
+        this.fileStarts = fileStarts;
+        this.totalSize = totalSize;
+        this.cursor = cursor;
+        this.distance = distance;
+        this.mode = mode;
+        this.thread = new Thread(this::run, "onebrc-prefetcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the prefetcher and waits for it to terminate.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The counters of the terminated prefetcher.
+     */
+    PrefetchCounters counters() {
+        return new PrefetchCounters(pages, fellBehind, faults[0], faults[1]);
+    }
+
+    private void run() {
+        long[] faultsBefore = pageFaults(THREAD_STAT);
+        try (var arena = Arena.ofConfined()) {
+            MemorySegment callState = mode == PrefetchMode.WILLNEED ? LibC.newCallState(arena) : null;
+            long warmed = 0;
+            while (!stopped && warmed < totalSize) {
+                long current = cursor.get();
+                if (warmed < current) {
+                    if (warmed > 0) {
+                        fellBehind++;
+                    }
+                    warmed = current;
+                }
+                long target = Math.min(Math.min(current + distance, totalSize), warmed + STEP);
+                if (warmed >= target) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                warm(warmed, target, callState);
+                warmed = target;
+            }
+        }
+        long[] faultsAfter = pageFaults(THREAD_STAT);
+        if (faultsBefore != null && faultsAfter != null) {
+            faults = new long[]{ faultsAfter[0] - faultsBefore[0], faultsAfter[1] - faultsBefore[1] };
+        }
+    }
+
+    // Warms the given range of the cursor space, file by file, as files can be much smaller than a step
+    private void warm(long from, long to, MemorySegment callState) {
+        int file = Arrays.binarySearch(fileStarts, from);
+        if (file < 0) {
+            file = -file - 2;
+        }
+        for (; file < files.length && fileStarts[file] < to; file++) {
+            MemorySegment data = files[file];
+            long start = Math.max(from - fileStarts[file], 0);
+            long end = Math.min(to - fileStarts[file], data.byteSize());
+            // Empty for the alignment gap after the end of the file
+            if (start < end) {
+                warm(data, start, end, callState);
+            }
+        }
+    }
+
+    private void warm(MemorySegment data, long start, long end, MemorySegment callState) {
+        long firstPage = Math.ceilDiv(data.address() + start, LibC.PAGE_SIZE) * LibC.PAGE_SIZE - data.address();
+        if (mode == PrefetchMode.TOUCH) {
+            int sum = 0;
+            for (long offset = firstPage; offset < end; offset += LibC.PAGE_SIZE) {
+                sum += data.get(ValueLayout.JAVA_BYTE, offset);
+                pages++;
+            }
+            sink += sum;
+        }
+        else if (firstPage < end) {
+            LibC.madvise(callState, data.address() + firstPage, end - firstPage, LibC.MADV_WILLNEED);
+            pages += Math.ceilDiv(end - firstPage, LibC.PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Returns the minor and major page faults from the given {@code /proc/.../stat} file, or {@code null} if they are
+     * not available, e.g. on other systems than Linux.
+     */
+    static long[] pageFaults(Path stat) {
+        if (!LibC.isSupported()) {
+            return null;
+        }
+        try {
+            String content = Files.readString(stat);
+            // Skip pid and the command name, which may contain spaces
+            String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+            // minflt and majflt are fields 10 and 12 of the whole line, 3 being the first after the command name
+            return new long[]{ Long.parseLong(fields[10 - 3]), Long.parseLong(fields[12 - 3]) };
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+}
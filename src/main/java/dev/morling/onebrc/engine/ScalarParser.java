@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Byte by byte parsing, in the style of the straightforward entries. It does not over-read and relies on nothing but
+ * bounds-checked segment access, which makes it the reference the other kernels are measured against.
+ */
+final class ScalarParser implements MeasurementParser {
+
+    @Override
+    public void parse(Chunk chunk, StationTable table) {
+        MemorySegment data = chunk.data();
+        long end = chunk.end();
+        long offset = chunk.start();
+        while (offset < end) {
+            long nameStart = offset;
+            int hash = 0;
+            byte b;
+            while ((b = data.get(ValueLayout.JAVA_BYTE, offset)) != ';') {
+                hash = 31 * hash + b;
+                offset++;
+            }
+            long station = table.find(hash ^ (hash >>> 15), data, nameStart, (int) (offset - nameStart));
+            offset++;
+
+            boolean negative = data.get(ValueLayout.JAVA_BYTE, offset) == '-';
+            if (negative) {
+                offset++;
+            }
+            int value = 0;
+            while ((b = data.get(ValueLayout.JAVA_BYTE, offset++)) != '\n') {
+                if (b != '.') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            table.record(station, negative ? -value : value);
+        }
+    }
+}
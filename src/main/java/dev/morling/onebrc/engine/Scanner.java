@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Cursor over raw memory, reading through {@code sun.misc.Unsafe} to avoid any bounds checks.
+ */
+final class Scanner {
+    private static final sun.misc.Unsafe UNSAFE = initUnsafe();
+    private long pos;
+    private final long end;
+
+    private static sun.misc.Unsafe initUnsafe() {
+        try {
+            java.lang.reflect.Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (sun.misc.Unsafe) theUnsafe.get(sun.misc.Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    Scanner(long start, long end) {
+        this.pos = start;
+        this.end = end;
+    }
+
+    boolean hasNext() {
+        return pos < end;
+    }
+
+    long pos() {
+        return pos;
+    }
+
+    void add(long delta) {
+        pos += delta;
+    }
+
+    long getLong() {
+        return UNSAFE.getLong(pos);
+    }
+
+    static long getLongAt(long pos) {
+        return UNSAFE.getLong(pos);
+    }
+
+    static int getIntAt(long pos) {
+        return UNSAFE.getInt(pos);
+    }
+
+    static void putIntAt(long pos, int value) {
+        UNSAFE.putInt(pos, value);
+    }
+
+    static void putLongAt(long pos, long value) {
+        UNSAFE.putLong(pos, value);
+    }
+}
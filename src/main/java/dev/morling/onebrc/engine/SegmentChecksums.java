@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes the CRC32C checksums of mapped files in the workers' parse pass, so that verifying them takes no second
+ * read of the input. Every segment of the cursor space is checksummed as a whole by the worker which claimed it,
+ * including the bytes of the lines it shares with its neighbours, right after parsing, while its bytes are still in the
+ * CPU caches. Once all segments were processed, the segment checksums of each file are combined in offset order into
+ * the checksum of the file, which is what {@link CRC32C} would yield for the file read sequentially.
+ * <p>
+ * {@link CRC32C} rejects direct buffers of shared arenas, so the bytes are copied into a small heap buffer in bounded
+ * steps, each through a slice of the file's segment; the copy stays in the CPU caches, and every read is bounds and
+ * liveness checked, also when the pages of the file are released early.
+ */
+final class SegmentChecksums {
+    // CRC32C polynomial, bit reversed
+    private static final int POLYNOMIAL = 0x82F63B78;
+    // x^(2^n) modulo the polynomial, for all bit shifts of lengths below 2^61 bytes
+    private static final int[] POWERS = new int[64];
+    // Bytes copied at a time, to stay within the L1/L2 caches
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static {
+        int power = 1 << 30; // x^1
+        for (int n = 0; n < POWERS.length; n++) {
+            POWERS[n] = power;
+            power = multiply(power, power);
+        }
+    }
+
+    private final MemorySegment[] files;
+    private final long[] fileStarts;
+    private final int segmentSize;
+    private final int[][] checksums;
+
+    SegmentChecksums(MemorySegment[] files, long[] fileStarts, int segmentSize) {
+        this.files = files;
+        this.fileStarts = fileStarts;
+        this.segmentSize = segmentSize;
+        this.checksums = new int[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            checksums[i] = new int[Math.toIntExact(Math.ceilDiv(files[i].byteSize(), segmentSize))];
+        }
+    }
+
+    /**
+     * Checksums the segment claimed at {@code position} in the given file. Called once for every segment, also the
+     * skipped ones, and before the segment's pages are released.
+     */
+    void update(int file, long position) {
+        long offset = position - fileStarts[file];
+        long length = Math.min(segmentSize, files[file].byteSize() - offset);
+        MemorySegment segment = files[file].asSlice(offset, length);
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+        CRC32C crc = new CRC32C();
+        for (long done = 0; done < length; done += buffer.length) {
+            int count = (int) Math.min(buffer.length, length - done);
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, done, buffer, 0, count);
+            crc.update(buffer, 0, count);
+        }
+        checksums[file][(int) (offset / segmentSize)] = (int) crc.getValue();
+    }
+
+    /**
+     * Returns the checksum of the given file, once all its segments were processed.
+     */
+    long checksum(int file) {
+        long size = files[file].byteSize();
+        int checksum = 0;
+        for (int segment = 0; segment < checksums[file].length; segment++) {
+            long length = Math.min(segmentSize, size - (long) segment * segmentSize);
+            checksum = combine(checksum, checksums[file][segment], length);
+        }
+        return Integer.toUnsignedLong(checksum);
+    }
+
+    /**
+     * Returns the checksum of the concatenation of two byte sequences from their checksums and the length of the
+     * second one, as {@code crc32_combine()} of zlib does: the first checksum is shifted by {@code 8 * length} bits,
+     * i.e. multiplied by {@code x^(8 * length)} modulo the polynomial, and added to the second one.
+     */
+    static int combine(int first, int second, long length) {
+        int shift = 1 << 31; // x^0
+        for (int n = 3; length != 0; length >>>= 1, n++) {
+            if ((length & 1) != 0) {
+                shift = multiply(POWERS[n], shift);
+            }
+        }
+        return multiply(shift, first) ^ second;
+    }
+
+    // Multiplies two polynomials modulo the CRC polynomial, in the bit reversed representation
+    private static int multiply(int a, int b) {
+        int product = 0;
+        for (int bit = 1 << 31; bit != 0; bit >>>= 1) {
+            if ((a & bit) != 0) {
+                product ^= b;
+            }
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+        }
+        return product;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Releases the pages of mapped files while a run is still in progress, so that the resident set shrinks as the cursor
+ * advances and there is little left to tear down when the mappings are closed. The segments of each file are grouped
+ * into blocks of at least {@link #MIN_BLOCK_SIZE} bytes. A block has one reader per segment, plus the last segment of
+ * the previous block, which reads the line crossing the block start. Each block counts its readers down without any
+ * locking, and the worker finishing the last of them releases the block with {@code madvise(MADV_DONTNEED)}, so that
+ * the releases are spread across the workers.
+ * <p>
+ * Unlike unmapping, dropping the pages of a private read-only mapping cannot cause a crash if they are read again:
+ * they are faulted back in from the page cache.
+ */
+final class SegmentReleaser {
+    static final long MIN_BLOCK_SIZE = 1 << 22;
+
+    private static final System.Logger LOGGER = System.getLogger(SegmentReleaser.class.getName());
+
+    private final MemorySegment[] files;
+    private final long[] fileStarts;
+    private final int[] firstBlocks;
+    private final int segmentSize;
+    private final long blockSize;
+    private final AtomicIntegerArray readers;
+    private final ThreadLocal<MemorySegment> callState = ThreadLocal.withInitial(() -> LibC.newCallState(Arena.ofAuto()));
+
+    SegmentReleaser(MemorySegment[] files, long[] fileStarts, int segmentSize) {
+        this.files = files;
+        this.fileStarts = fileStarts;
+        this.segmentSize = segmentSize;
+        this.blockSize = Math.ceilDiv(MIN_BLOCK_SIZE, segmentSize) * segmentSize;
+        this.firstBlocks = new int[files.length];
+
+        int blocks = 0;
+        for (int i = 0; i < files.length; i++) {
+            firstBlocks[i] = blocks;
+            blocks += Math.toIntExact(Math.ceilDiv(files[i].byteSize(), blockSize));
+        }
+        this.readers = new AtomicIntegerArray(blocks);
+        for (int i = 0; i < files.length; i++) {
+            long size = files[i].byteSize();
+            for (long offset = 0; offset < size; offset += blockSize) {
+                int segments = Math.toIntExact(Math.ceilDiv(Math.min(blockSize, size - offset), segmentSize));
+                readers.set(firstBlocks[i] + (int) (offset / blockSize), offset == 0 ? segments : segments + 1);
+            }
+        }
+    }
+
+    /**
+     * Records that the segment claimed at {@code position} in the given file was processed, or skipped.
+     */
+    void done(int file, long position) {
+        long offset = position - fileStarts[file];
+        int block = firstBlocks[file] + (int) (offset / blockSize);
+        countDown(file, block);
+        long next = offset + segmentSize;
+        if (next % blockSize == 0 && next < files[file].byteSize()) {
+            // This segment also read the first line of the next block
+            countDown(file, block + 1);
+        }
+    }
+
+    private void countDown(int file, int block) {
+        if (readers.decrementAndGet(block) != 0) {
+            return;
+        }
+        MemorySegment data = files[file];
+        long start = (block - firstBlocks[file]) * blockSize;
+        long end = Math.min(start + blockSize, data.byteSize());
+        // Page aligned, each page being released with the block containing its first byte
+        long from = Math.ceilDiv(data.address() + start, LibC.PAGE_SIZE) * LibC.PAGE_SIZE;
+        long to = Math.ceilDiv(data.address() + end, LibC.PAGE_SIZE) * LibC.PAGE_SIZE;
+        if (from < to && LibC.madvise(callState.get(), from, to - from, LibC.MADV_DONTNEED) != 0) {
+            LOGGER.log(System.Logger.Level.DEBUG, "Releasing block {0} failed: {1}", block, LibC.error(callState.get()));
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * The kernel of {@link SwarParser}, reading the input through {@link MemorySegment} accessors with an unaligned
+ * little-endian long layout instead of {@code sun.misc.Unsafe}, like {@code CalculateAverage_merykitty} does.
+ * <p>
+ * All reads go through the chunk's own segment, at offsets within it, so that they are bounds and liveness checked like
+ * any other segment access. No read goes further than a name and number past the start of a line, which
+ * {@link Chunk#PADDING} covers at the end of the chunk.
+ * <p>
+ * The lines of stations already in the table are parsed by {@code parseKnown}, which holds the input and the table's
+ * segments in locals and inlines the lookup of names shorter than 16 bytes, the number conversion and the update, so
+ * that the JIT hoists the liveness checks out of its loop. It returns at the first station which is not in the table
+ * yet, which the path of {@link SwarParser} then inserts. Each chunk is split into two parts scanned interleaved rather
+ * than three, as inlining the lookup of a third one exceeds the JIT's inlining budget and leaves calls in the loop.
+ * <p>
+ * The input is read through a native view of the chunk's segment, with the same bounds and lifetime, so that the
+ * accessors see a single segment class: the mapped segments of the file and the native copies of its tail would
+ * otherwise make them polymorphic.
+ */
+final class SegmentSwarParser implements MeasurementParser {
+    private static final ValueLayout.OfLong JAVA_LONG_LT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final int PROBE_STRIDE = SwarParser.PROBE_STRIDE;
+
+    @Override
+    public int probeStride() {
+        return PROBE_STRIDE;
+    }
+
+    @Override
+    public void parse(Chunk chunk, StationTable table) {
+        MemorySegment data = chunk.data();
+        data = data.reinterpret(data.byteSize());
+        long segmentStart = chunk.start();
+        long segmentEnd = chunk.end();
+
+        long midPoint = nextNewLine(data, segmentStart + (segmentEnd - segmentStart) / 2) + 1;
+        SegmentScanner scanner1 = new SegmentScanner(segmentStart, midPoint);
+        SegmentScanner scanner2 = new SegmentScanner(midPoint, segmentEnd);
+        while (parseKnown(data, scanner1, scanner2, table.memory(), table.slotsOffset(), table.mask(), table.names())) {
+            parseLine(data, scanner1, table);
+            parseLine(data, scanner2, table);
+        }
+
+        parseRemaining(data, scanner1, table);
+        parseRemaining(data, scanner2, table);
+    }
+
+    // Parses the lines of both scanners as long as their stations are in the table, returning false once a scanner is
+    // exhausted and true at a line whose station is not in the table, which is left to both scanners.
+    private static boolean parseKnown(MemorySegment data, SegmentScanner scanner1, SegmentScanner scanner2, MemorySegment memory, long slots,
+                                      int tableMask, MemorySegment names) {
+        long pos1 = scanner1.pos();
+        long pos2 = scanner2.pos();
+        long end1 = scanner1.end();
+        long end2 = scanner2.end();
+        boolean unknown = false;
+        while (pos1 < end1 && pos2 < end2) {
+            long word1 = data.get(JAVA_LONG_LT, pos1);
+            long word2 = data.get(JAVA_LONG_LT, pos2);
+            long delimiterMask1 = Swar.findDelimiter(word1);
+            long delimiterMask2 = Swar.findDelimiter(word2);
+            long word1b = data.get(JAVA_LONG_LT, pos1 + 8);
+            long word2b = data.get(JAVA_LONG_LT, pos2 + 8);
+            long delimiterMask1b = Swar.findDelimiter(word1b);
+            long delimiterMask2b = Swar.findDelimiter(word2b);
+            long name1 = pos1;
+            long name2 = pos2;
+            long existingResult1;
+            long existingResult2;
+            if ((delimiterMask1 | delimiterMask1b) != 0) {
+                int letterCount1 = Long.numberOfTrailingZeros(delimiterMask1) >>> 3; // value between 1 and 8
+                int letterCount2 = Long.numberOfTrailingZeros(delimiterMask1b) >>> 3; // value between 0 and 8
+                long mask = Swar.MASK2[letterCount1];
+                long first = word1 & Swar.MASK1[letterCount1];
+                long second = mask & word1b & Swar.MASK1[letterCount2];
+                existingResult1 = find(memory, slots, tableMask, first, second);
+                pos1 += letterCount1 + (letterCount2 & mask);
+            }
+            else {
+                existingResult1 = findLong(data, pos1, word1 ^ word1b, memory, slots, tableMask, names);
+                // Entry 0 is never used and reads as a name of length 0
+                pos1 += StationTable.nameLength(memory, existingResult1);
+            }
+            if ((delimiterMask2 | delimiterMask2b) != 0) {
+                int letterCount1 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3;
+                int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2b) >>> 3;
+                long mask = Swar.MASK2[letterCount1];
+                long first = word2 & Swar.MASK1[letterCount1];
+                long second = mask & word2b & Swar.MASK1[letterCount2];
+                existingResult2 = find(memory, slots, tableMask, first, second);
+                pos2 += letterCount1 + (letterCount2 & mask);
+            }
+            else {
+                existingResult2 = findLong(data, pos2, word2 ^ word2b, memory, slots, tableMask, names);
+                pos2 += StationTable.nameLength(memory, existingResult2);
+            }
+            if (existingResult1 == 0 || existingResult2 == 0) {
+                pos1 = name1;
+                pos2 = name2;
+                unknown = true;
+                break;
+            }
+            long numberWord1 = data.get(JAVA_LONG_LT, pos1 + 1);
+            long numberWord2 = data.get(JAVA_LONG_LT, pos2 + 1);
+            int decimalSepPos1 = Long.numberOfTrailingZeros(~numberWord1 & 0x10101000L);
+            int decimalSepPos2 = Long.numberOfTrailingZeros(~numberWord2 & 0x10101000L);
+            long number1 = Swar.convertIntoNumber(decimalSepPos1, numberWord1);
+            long number2 = Swar.convertIntoNumber(decimalSepPos2, numberWord2);
+            pos1 += (decimalSepPos1 >>> 3) + 4;
+            pos2 += (decimalSepPos2 >>> 3) + 4;
+            StationTable.record(memory, existingResult1, number1);
+            StationTable.record(memory, existingResult2, number2);
+        }
+        scanner1.add(pos1 - scanner1.pos());
+        scanner2.add(pos2 - scanner2.pos());
+        return unknown;
+    }
+
+    // Returns the station with the given name words of a name shorter than 16 bytes, or 0 if it is not in the table
+    private static long find(MemorySegment memory, long slots, int tableMask, long first, long second) {
+        int tableIndex = Swar.hashToInt(first ^ second) & tableMask;
+        while (true) {
+            long existingResult = StationTable.entryAt(memory, slots, tableIndex);
+            if (existingResult == 0 || StationTable.firstWord(memory, existingResult) == first && StationTable.secondWord(memory, existingResult) == second) {
+                return existingResult;
+            }
+            tableIndex = (tableIndex + PROBE_STRIDE) & tableMask;
+        }
+    }
+
+    // Returns the station with the name of 16 or more bytes at nameOffset, whose first two words XORed are given, or 0
+    // if it is not in the table. Out of line, as it is too large to be inlined twice, and only taken for long names.
+    private static long findLong(MemorySegment data, long nameOffset, long hash, MemorySegment memory, long slots, int tableMask, MemorySegment names) {
+        long pos = nameOffset + 16;
+        while (true) {
+            long word = data.get(JAVA_LONG_LT, pos);
+            long delimiterMask = Swar.findDelimiter(word);
+            if (delimiterMask != 0) {
+                int trailingZeros = Long.numberOfTrailingZeros(delimiterMask);
+                pos += trailingZeros >>> 3;
+                hash ^= word << (63 - trailingZeros);
+                break;
+            }
+            pos += 8;
+            hash ^= word;
+        }
+        int nameLength = (int) (pos - nameOffset);
+        int tableIndex = Swar.hashToInt(hash) & tableMask;
+        outer: while (true) {
+            long existingResult = StationTable.entryAt(memory, slots, tableIndex);
+            if (existingResult == 0) {
+                return 0;
+            }
+            tableIndex = (tableIndex + PROBE_STRIDE) & tableMask;
+            if (StationTable.nameLength(memory, existingResult) != nameLength) {
+                continue;
+            }
+            long existingName = StationTable.nameOffset(memory, existingResult);
+            int i = 0;
+            for (; i < nameLength + 1 - 8; i += 8) {
+                if (names.get(JAVA_LONG_LT, existingName + i) != data.get(JAVA_LONG_LT, nameOffset + i)) {
+                    continue outer;
+                }
+            }
+            int remainingShift = (64 - ((nameLength + 1 - i) << 3));
+            if (((names.get(JAVA_LONG_LT, existingName + i) ^ data.get(JAVA_LONG_LT, nameOffset + i)) << remainingShift) == 0) {
+                return existingResult;
+            }
+        }
+    }
+
+    private static void parseLine(MemorySegment data, SegmentScanner scanner, StationTable table) {
+        if (scanner.hasNext()) {
+            long word = scanner.getLong(data);
+            long pos = Swar.findDelimiter(word);
+            long wordB = scanner.getLongAt(data, scanner.pos() + 8);
+            long posB = Swar.findDelimiter(wordB);
+            table.record(findResult(data, word, pos, wordB, posB, scanner, table), scanNumber(data, scanner));
+        }
+    }
+
+    private static void parseRemaining(MemorySegment data, SegmentScanner scanner, StationTable table) {
+        while (scanner.hasNext()) {
+            long word = scanner.getLong(data);
+            long pos = Swar.findDelimiter(word);
+            long wordB = scanner.getLongAt(data, scanner.pos() + 8);
+            long posB = Swar.findDelimiter(wordB);
+            table.record(findResult(data, word, pos, wordB, posB, scanner, table), scanNumber(data, scanner));
+        }
+    }
+
+    private static long findResult(MemorySegment data, long initialWord, long initialDelimiterMask, long wordB, long delimiterMaskB, SegmentScanner scanner,
+                                   StationTable table) {
+        int tableMask = table.mask();
+        MemorySegment memory = table.memory();
+        long slots = table.slotsOffset();
+        long existingResult;
+        long word = initialWord;
+        long delimiterMask = initialDelimiterMask;
+        long hash;
+        long nameOffset = scanner.pos();
+        long word2 = wordB;
+        long delimiterMask2 = delimiterMaskB;
+        if ((delimiterMask | delimiterMask2) != 0) {
+            int letterCount1 = Long.numberOfTrailingZeros(delimiterMask) >>> 3; // value between 1 and 8
+            int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3; // value between 0 and 8
+            long mask = Swar.MASK2[letterCount1];
+            word = word & Swar.MASK1[letterCount1];
+            word2 = mask & word2 & Swar.MASK1[letterCount2];
+            hash = word ^ word2;
+            scanner.add(letterCount1 + (letterCount2 & mask));
+            existingResult = StationTable.entryAt(memory, slots, Swar.hashToInt(hash) & tableMask);
+            if (existingResult != 0 && StationTable.firstWord(memory, existingResult) == word && StationTable.secondWord(memory, existingResult) == word2) {
+                return existingResult;
+            }
+        }
+        else {
+            // Slow-path for when the ';' could not be found in the first 16 bytes.
+            hash = word ^ word2;
+            scanner.add(16);
+            while (true) {
+                word = scanner.getLong(data);
+                delimiterMask = Swar.findDelimiter(word);
+                if (delimiterMask != 0) {
+                    int trailingZeros = Long.numberOfTrailingZeros(delimiterMask);
+                    word = (word << (63 - trailingZeros));
+                    scanner.add(trailingZeros >>> 3);
+                    hash ^= word;
+                    break;
+                }
+                else {
+                    scanner.add(8);
+                    hash ^= word;
+                }
+            }
+        }
+
+        // Save length of name for later.
+        int nameLength = (int) (scanner.pos() - nameOffset);
+
+        // Final calculation for index into hash table.
+        int hashAsInt = Swar.hashToInt(hash);
+        int tableIndex = hashAsInt & tableMask;
+        outer: while (true) {
+            existingResult = table.entryAt(tableIndex);
+            if (existingResult == 0) {
+                existingResult = table.insert(tableIndex, hashAsInt, data, nameOffset, nameLength);
+            }
+            // Check for collision.
+            int i = 0;
+            for (; i < nameLength + 1 - 8; i += 8) {
+                if (table.nameWordAt(existingResult, i) != scanner.getLongAt(data, nameOffset + i)) {
+                    // Collision error, try next.
+                    tableIndex = (tableIndex + PROBE_STRIDE) & tableMask;
+                    continue outer;
+                }
+            }
+
+            int remainingShift = (64 - ((nameLength + 1 - i) << 3));
+            if (((table.nameWordAt(existingResult, i) ^ scanner.getLongAt(data, nameOffset + i)) << remainingShift) == 0) {
+                break;
+            }
+            else {
+                // Collision error, try next.
+                tableIndex = (tableIndex + PROBE_STRIDE) & tableMask;
+            }
+        }
+        return existingResult;
+    }
+
+    private static long nextNewLine(MemorySegment data, long prev) {
+        while (true) {
+            long currentWord = data.get(JAVA_LONG_LT, prev);
+            long pos = Swar.findNewLine(currentWord);
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    private static long scanNumber(MemorySegment data, SegmentScanner scanPtr) {
+        long numberWord = scanPtr.getLongAt(data, scanPtr.pos() + 1);
+        int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+        long number = Swar.convertIntoNumber(decimalSepPos, numberWord);
+        scanPtr.add((decimalSepPos >>> 3) + 4);
+        return number;
+    }
+
+    private static final class SegmentScanner {
+        private long pos;
+        private final long end;
+
+        SegmentScanner(long start, long end) {
+            this.pos = start;
+            this.end = end;
+        }
+
+        boolean hasNext() {
+            return pos < end;
+        }
+
+        long end() {
+            return end;
+        }
+
+        long pos() {
+            return pos;
+        }
+
+        void add(long delta) {
+            pos += delta;
+        }
+
+        long getLong(MemorySegment data) {
+            return data.get(JAVA_LONG_LT, pos);
+        }
+
+        long getLongAt(MemorySegment data, long pos) {
+            return data.get(JAVA_LONG_LT, pos);
+        }
+    }
+}
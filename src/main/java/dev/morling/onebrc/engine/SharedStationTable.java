@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single open addressing table shared by all workers, as an alternative to one {@link StationTable} per worker and a
+ * merge at the end. Slots live off-heap, one cache line each, so that updates of different stations do not contend:
+ *
+ * <pre>
+ *  0 int  name length, or 0 while empty, or -1 while being claimed
+ *  4 int  hash
+ *  8 long first name word
+ * 16 long second name word
+ * 24 int  min, 28 int max, 32 long sum, 40 long count
+ * </pre>
+ *
+ * The names themselves are copied into segments of their own, kept in an array by slot. A worker claims an empty slot
+ * by CAS-ing its length from 0 to -1, fills in the name and initial statistics, and publishes the slot by storing the
+ * length with release semantics; workers probing past a slot being claimed wait for it to be published. Sum and count
+ * are updated with atomic adds, min and max with CAS loops, which are only entered if the value changes the current
+ * extreme. The capacity is fixed, as growing would have to stop all workers. Once it is reached, {@link #find} returns
+ * {@link #FULL} for new names, whose measurements the caller has to aggregate elsewhere.
+ */
+final class SharedStationTable implements AutoCloseable {
+    static final long FULL = -1;
+
+    private static final int SLOT_SIZE = 64;
+    private static final long LENGTH = 0;
+    private static final long HASH = 4;
+    private static final long FIRST_WORD = 8;
+    private static final long SECOND_WORD = 16;
+    private static final long MIN = 24;
+    private static final long MAX = 28;
+    private static final long SUM = 32;
+    private static final long COUNT = 40;
+    private static final int EMPTY = 0;
+    private static final int CLAIMED = -1;
+
+    private static final VarHandle INT = MethodHandles.memorySegmentViewVarHandle(ValueLayout.JAVA_INT);
+    private static final VarHandle LONG = MethodHandles.memorySegmentViewVarHandle(ValueLayout.JAVA_LONG);
+
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment slots;
+    // Written before the length of the slot is published
+    private final MemorySegment[] names;
+    private final int mask;
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates a table for up to {@code capacity} stations, with at least twice as many slots.
+     */
+    SharedStationTable(int capacity) {
+        int slotCount = Integer.highestOneBit(Math.max(capacity, 1)) << 2;
+        this.capacity = capacity;
+        this.mask = slotCount - 1;
+        this.slots = arena.allocate((long) slotCount * SLOT_SIZE, SLOT_SIZE);
+        this.names = new MemorySegment[slotCount];
+    }
+
+    /**
+     * Returns the offset of the slot of the name at the given offset of {@code data}, claiming a slot if the name is
+     * new, or {@link #FULL} if it is new and the table is full. The words are the first 16 bytes of the name, with all
+     * bytes past the name cleared.
+     */
+    long find(MemorySegment data, long offset, int nameLength, long firstWord, long secondWord, int hash) {
+        for (int index = hash & mask;; index = (index + 1) & mask) {
+            long slot = (long) index * SLOT_SIZE;
+            int length = (int) INT.getAcquire(slots, slot + LENGTH);
+            if (length == EMPTY) {
+                if (!reserve()) {
+                    return FULL;
+                }
+                if (INT.compareAndSet(slots, slot + LENGTH, EMPTY, CLAIMED)) {
+                    claim(index, data, offset, nameLength, firstWord, secondWord, hash);
+                    return slot;
+                }
+                size.decrementAndGet();
+                length = (int) INT.getAcquire(slots, slot + LENGTH);
+            }
+            while (length == CLAIMED) {
+                Thread.onSpinWait();
+                length = (int) INT.getAcquire(slots, slot + LENGTH);
+            }
+            if (length == nameLength
+                    && (int) INT.get(slots, slot + HASH) == hash
+                    && (long) LONG.get(slots, slot + FIRST_WORD) == firstWord
+                    && (long) LONG.get(slots, slot + SECOND_WORD) == secondWord
+                    && (nameLength <= 2 * Long.BYTES
+                            || MemorySegment.mismatch(data, offset + 2 * Long.BYTES, offset + nameLength, names[index], 2 * Long.BYTES, nameLength) == -1)) {
+                return slot;
+            }
+        }
+    }
+
+    void record(long slot, int value) {
+        LONG.getAndAdd(slots, slot + SUM, (long) value);
+        LONG.getAndAdd(slots, slot + COUNT, 1L);
+        int min = (int) INT.getVolatile(slots, slot + MIN);
+        while (value < min && !INT.compareAndSet(slots, slot + MIN, min, value)) {
+            min = (int) INT.getVolatile(slots, slot + MIN);
+        }
+        int max = (int) INT.getVolatile(slots, slot + MAX);
+        while (value > max && !INT.compareAndSet(slots, slot + MAX, max, value)) {
+            max = (int) INT.getVolatile(slots, slot + MAX);
+        }
+    }
+
+    /**
+     * Returns the statistics of all stations, once all workers are done.
+     */
+    SortedMap<String, StationStats> toMap() {
+        TreeMap<String, StationStats> result = new TreeMap<>();
+        for (long slot = 0; slot < slots.byteSize(); slot += SLOT_SIZE) {
+            int length = (int) INT.get(slots, slot + LENGTH);
+            if (length > 0) {
+                MemorySegment name = names[(int) (slot / SLOT_SIZE)];
+                result.put(new String(name.toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8),
+                        new StationStats((int) INT.get(slots, slot + MIN), (int) INT.get(slots, slot + MAX), (long) LONG.get(slots, slot + SUM),
+                                (long) LONG.get(slots, slot + COUNT)));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    // Takes one of the capacity's stations, unless all are taken
+    private boolean reserve() {
+        int current = size.get();
+        while (current < capacity) {
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = size.get();
+        }
+        return false;
+    }
+
+    private void claim(int index, MemorySegment data, long offset, int nameLength, long firstWord, long secondWord, int hash) {
+        long slot = (long) index * SLOT_SIZE;
+        MemorySegment name = arena.allocate(nameLength);
+        MemorySegment.copy(data, offset, name, 0, nameLength);
+        names[index] = name;
+        INT.set(slots, slot + HASH, hash);
+        LONG.set(slots, slot + FIRST_WORD, firstWord);
+        LONG.set(slots, slot + SECOND_WORD, secondWord);
+        INT.set(slots, slot + MIN, StationTable.MAX_TEMP);
+        INT.set(slots, slot + MAX, StationTable.MIN_TEMP);
+        INT.setRelease(slots, slot + LENGTH, nameLength);
+    }
+}
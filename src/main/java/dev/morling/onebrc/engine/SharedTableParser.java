@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Parses chunks into a {@link SharedStationTable}, with the word-wise delimiter search and branchless number
+ * conversion of {@link Swar}, reading through the chunk's own segment. Lines are processed with a single
+ * cursor, as the atomic updates of the shared table leave little to gain from interleaving.
+ * <p>
+ * The table passed to {@link #parse} is the worker's own, and only takes the stations which no longer fit into the
+ * shared table once its capacity is reached.
+ */
+final class SharedTableParser implements MeasurementParser {
+    private static final ValueLayout.OfLong JAVA_LONG_LT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final SharedStationTable shared;
+
+    SharedTableParser(SharedStationTable shared) {
+        this.shared = shared;
+    }
+
+    @Override
+    public void parse(Chunk chunk, StationTable overflow) {
+        MemorySegment data = chunk.data();
+        SharedStationTable shared = this.shared;
+        long pos = chunk.start();
+        long end = chunk.end();
+        while (pos < end) {
+            long nameOffset = pos;
+            long firstWord = data.get(JAVA_LONG_LT, pos);
+            long secondWord = data.get(JAVA_LONG_LT, pos + Long.BYTES);
+            long delimiterMask = Swar.findDelimiter(firstWord);
+            int nameLength;
+            if (delimiterMask != 0) {
+                nameLength = Long.numberOfTrailingZeros(delimiterMask) >>> 3;
+                firstWord &= (1L << (nameLength << 3)) - 1;
+                secondWord = 0;
+            }
+            else {
+                delimiterMask = Swar.findDelimiter(secondWord);
+                if (delimiterMask != 0) {
+                    nameLength = Long.BYTES + (Long.numberOfTrailingZeros(delimiterMask) >>> 3);
+                    secondWord &= (1L << ((nameLength - Long.BYTES) << 3)) - 1;
+                }
+                else {
+                    pos += 2 * Long.BYTES;
+                    while ((delimiterMask = Swar.findDelimiter(data.get(JAVA_LONG_LT, pos))) == 0) {
+                        pos += Long.BYTES;
+                    }
+                    nameLength = (int) (pos - nameOffset) + (Long.numberOfTrailingZeros(delimiterMask) >>> 3);
+                }
+            }
+            long hash = firstWord ^ secondWord ^ nameLength;
+            int finalHash = (int) (hash ^ (hash >>> 33) ^ (hash >>> 15));
+            long slot = shared.find(data, nameOffset, nameLength, firstWord, secondWord, finalHash);
+
+            pos = nameOffset + nameLength;
+            long numberWord = data.get(JAVA_LONG_LT, pos + 1);
+            int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+            int value = (int) Swar.convertIntoNumber(decimalSepPos, numberWord);
+            if (slot != SharedStationTable.FULL) {
+                shared.record(slot, value);
+            }
+            else {
+                overflow.record(overflow.find(finalHash, data, nameOffset, nameLength), value);
+            }
+            pos += (decimalSepPos >>> 3) + 4;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounds the memory of runs with more distinct stations than fit into one table per worker. A worker whose table
+ * passes the spill threshold writes the table's entries to one file per partition and continues with an empty table.
+ * Partitions are ranges of station names, split at names sampled from the first table spilled, so that they come out
+ * in the order of the result. If any worker spilled, the remaining tables are spilled as well once all input was
+ * parsed, and the workers then merge one partition at a time each. Every partition holds a disjoint range of stations,
+ * so merging it only needs the memory for those stations; merged partitions are passed on strictly in order, and
+ * dropped once passed on, so that at most one partition per worker is held at any time, however many stations there
+ * are in total.
+ * <p>
+ * Each worker writes its own files, so spilling takes no locks. The files are created in a temporary directory on the
+ * first spill and deleted when the spiller is closed.
+ */
+final class Spiller implements Closeable {
+    private static final System.Logger LOGGER = System.getLogger(Spiller.class.getName());
+
+    private final Path parent;
+    private final int partitions;
+    private final DataOutputStream[][] outputs;
+    private Path directory;
+    // The smallest name of each partition but the first, set by the first spill
+    private volatile String[] splitters;
+    private volatile boolean spilled;
+
+    Spiller(Path parent, int partitions, int workers) {
+        this.parent = parent;
+        this.partitions = partitions;
+        this.outputs = new DataOutputStream[workers][];
+    }
+
+    boolean hasSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Writes the entries of the given worker's table to the partition files of that worker. The table must not be
+     * used afterwards.
+     */
+    void spill(int worker, StationTable table) throws IOException {
+        if (outputs[worker] == null) {
+            open(worker);
+        }
+        DataOutputStream[] files = outputs[worker];
+        String[] splitters = splitters(table);
+        for (int station = 0; station < table.size(); station++) {
+            long entry = table.entry(station);
+            if (table.count(entry) == 0) {
+                // Preloaded from a dictionary
+                continue;
+            }
+            byte[] name = table.name(entry);
+            StationStats stats = table.toStats(entry);
+            DataOutputStream out = files[partition(splitters, new String(name, StandardCharsets.UTF_8))];
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeInt(stats.minTenths());
+            out.writeInt(stats.maxTenths());
+            out.writeLong(stats.sumTenths());
+            out.writeLong(stats.count());
+        }
+        spilled = true;
+        LOGGER.log(System.Logger.Level.DEBUG, "Worker {0} spilled {1} stations", worker, table.size());
+    }
+
+    /**
+     * Spills the tables left at the end of the parse phase, then merges all partitions with {@code threads} workers,
+     * passing the stations to {@code consumer} in order of their names.
+     */
+    void merge(StationTable[] remaining, int threads, BiConsumer<String, StationStats> consumer) throws IOException {
+        AggregationEngine.runWorkers(remaining.length, index -> {
+            spill(index, remaining[index]);
+            remaining[index].close();
+            remaining[index] = null;
+            for (DataOutputStream out : outputs[index]) {
+                out.close();
+            }
+        });
+
+        // Partitions are read back in parallel, but passed on in order: a worker holds the partition it read until
+        // all preceding ones were passed on
+        Turns turns = new Turns();
+        AtomicInteger next = new AtomicInteger();
+        AggregationEngine.runWorkers(threads, index -> {
+            try {
+                for (int partition = next.getAndIncrement(); partition < partitions; partition = next.getAndIncrement()) {
+                    TreeMap<String, StationStats> merged = read(partition);
+                    if (!turns.await(partition)) {
+                        return;
+                    }
+                    merged.forEach(consumer);
+                    turns.advance();
+                }
+            }
+            catch (Throwable t) {
+                turns.abort();
+                throw t;
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        for (DataOutputStream[] files : outputs) {
+            if (files != null) {
+                for (DataOutputStream out : files) {
+                    out.close();
+                }
+            }
+        }
+        try (var stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private void open(int worker) throws IOException {
+        Path target = directory();
+        DataOutputStream[] files = new DataOutputStream[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            files[partition] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file(target, worker, partition)), 1 << 16));
+        }
+        outputs[worker] = files;
+    }
+
+    private synchronized Path directory() throws IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory(parent, "onebrc-spill-");
+        }
+        return directory;
+    }
+
+    private TreeMap<String, StationStats> read(int partition) throws IOException {
+        TreeMap<String, StationStats> stations = new TreeMap<>();
+        for (int worker = 0; worker < outputs.length; worker++) {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(directory, worker, partition)), 1 << 16))) {
+                byte[] name = new byte[256];
+                int high;
+                while ((high = in.read()) != -1) {
+                    int nameLength = high << 8 | in.readUnsignedByte();
+                    if (nameLength > name.length) {
+                        name = new byte[nameLength];
+                    }
+                    in.readFully(name, 0, nameLength);
+                    StationStats stats = new StationStats(in.readInt(), in.readInt(), in.readLong(), in.readLong());
+                    StationStats current = stations.putIfAbsent(new String(name, 0, nameLength, StandardCharsets.UTF_8), stats);
+                    if (current != null) {
+                        current.accumulate(stats);
+                    }
+                }
+            }
+        }
+        return stations;
+    }
+
+    private static Path file(Path directory, int worker, int partition) {
+        return directory.resolve(worker + "-" + partition + ".bin");
+    }
+
+    // Samples the splitters from the names of the first table spilled; all workers partition by the same ones
+    private synchronized String[] splitters(StationTable table) {
+        if (splitters == null) {
+            String[] names = new String[table.size()];
+            for (int station = 0; station < names.length; station++) {
+                names[station] = new String(table.name(table.entry(station)), StandardCharsets.UTF_8);
+            }
+            Arrays.sort(names);
+            String[] sampled = new String[partitions - 1];
+            for (int i = 0; i < sampled.length; i++) {
+                sampled[i] = names.length == 0 ? "" : names[(int) ((long) (i + 1) * names.length / partitions)];
+            }
+            splitters = sampled;
+        }
+        return splitters;
+    }
+
+    private static int partition(String[] splitters, String name) {
+        int index = Arrays.binarySearch(splitters, name);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Hands the turn to pass on a merged partition from one worker to the next, in partition order.
+     */
+    private static final class Turns {
+        private int current;
+        private boolean aborted;
+
+        /**
+         * Waits until the given partition may be passed on; returns {@code false} if another worker failed.
+         */
+        synchronized boolean await(int partition) throws InterruptedIOException {
+            try {
+                while (current != partition && !aborted) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to pass on partition " + partition);
+            }
+            return !aborted;
+        }
+
+        synchronized void advance() {
+            current++;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Map;
+
+/**
+ * Aggregated measurements of a single station. Temperatures are kept in tenths of a degree, as they appear in the
+ * input, so that merging results from several threads or runs does not accumulate rounding errors.
+ */
+public final class StationStats {
+    private int min;
+    private int max;
+    private long sum;
+    private long count;
+
+    StationStats(int min, int max, long sum, long count) {
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public double min() {
+        return min / 10.0;
+    }
+
+    public double max() {
+        return max / 10.0;
+    }
+
+    public double mean() {
+        return round((((double) sum) / 10.0) / count);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    int minTenths() {
+        return min;
+    }
+
+    int maxTenths() {
+        return max;
+    }
+
+    long sumTenths() {
+        return sum;
+    }
+
+    void accumulate(int otherMin, int otherMax, long otherSum, long otherCount) {
+        if (otherMin < min) {
+            min = otherMin;
+        }
+        if (otherMax > max) {
+            max = otherMax;
+        }
+        sum += otherSum;
+        count += otherCount;
+    }
+
+    void accumulate(StationStats other) {
+        accumulate(other.min, other.max, other.sum, other.count);
+    }
+
+    /**
+     * Adds the statistics of {@code source} to those of {@code target}, modifying the entries of the latter.
+     */
+    static void mergeInto(Map<String, StationStats> target, Map<String, StationStats> source) {
+        for (Map.Entry<String, StationStats> entry : source.entrySet()) {
+            StationStats current = target.get(entry.getKey());
+            if (current == null) {
+                target.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                current.accumulate(entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return round(min / 10.0) + "/" + mean() + "/" + round(max / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+}
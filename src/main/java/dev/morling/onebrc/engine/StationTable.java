@@ -0,0 +1,428 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Per-thread open addressing table of stations, kept off-heap: with millions of distinct stations, a {@code Station}
+ * object and name array per entry took 150 bytes each and left the garbage collector copying and tracing millions of
+ * live objects, about a third of the run time at 2.5M stations. Hashing and key comparison are left to the parser, as
+ * they depend on how the parser reads the input; the table owns the slots, entries and names. Parsers probe from the
+ * slot selected by the low bits of their hash, in steps of their {@link MeasurementParser#probeStride() probe stride}.
+ * <p>
+ * The entries and the slots share one segment, the entries first and the slots from {@link #slotsOffset()} on. A slot
+ * holds the index of its station's entry, or 0 while empty, so entry 0 is never used. Stations are referred to by the
+ * offset of their entry in that segment, which is 64 bytes:
+ *
+ * <pre>
+ *  0 long first name word
+ *  8 long second name word
+ * 16 long sum, 24 long count
+ * 32 int  min, 36 int max
+ * 40 int  name length
+ * 44 int  hash
+ * 48 long offset of the name
+ * </pre>
+ *
+ * Entries are numbered in insertion order. The name words are the first 16 bytes of the name followed by ';' and zero
+ * padding, as the SWAR parsers read them from the input, for their fast compare. The names are appended to a segment
+ * of their own, each followed by ';' and zero padded to whole words, with at least 16 bytes per name and space for a
+ * full load of the widest vector species past the last one.
+ * <p>
+ * The table is sized for the 10,000 stations of the 1BRC data set, and the slots double whenever they become half
+ * full, so that any number of distinct stations can be aggregated. Growing re-inserts the entries by the hash they
+ * were inserted with, so names are neither re-read nor re-hashed; entries and names are copied into larger segments as
+ * needed, at the same offsets. Each segment is allocated from an arena of its own, which is closed when the segment is
+ * replaced, so that growing does not hold on to the smaller copies, and when the table is closed. The arenas are
+ * shared, as tables filled by the workers are merged by another thread.
+ * <p>
+ * The accessors read through the table's own segments, at offsets relative to them, so that they are bounds checked
+ * like the input reads of the {@code Unsafe}-free kernels. The static accessors take the segment of the entries and
+ * slots, for kernels which keep it in a local between insertions, so that the JIT checks it once rather than on every
+ * access. Only the {@code Unsafe} kernel reads the table by address, through {@link #slotsAddress()},
+ * {@link #entriesAddress()} and {@link #namesAddress()}, as it does the input.
+ */
+final class StationTable implements AutoCloseable {
+    static final int MIN_TEMP = -999;
+    static final int MAX_TEMP = 999;
+    static final int EXPECTED_CITIES = 10000;
+    static final int INITIAL_SIZE = 1 << 17;
+
+    static final int ENTRY_SHIFT = 6;
+    static final long FIRST_WORD = 0;
+    static final long SECOND_WORD = 8;
+    static final long SUM = 16;
+    static final long COUNT = 24;
+    static final long MIN = 32;
+    static final long MAX = 36;
+    private static final long NAME_LENGTH = 40;
+    private static final long HASH = 44;
+    static final long NAME = 48;
+    // Initial bytes of the names segment per station
+    private static final int NAME_BYTES = 32;
+    // Large enough for a full load of the widest vector species.
+    private static final int NAME_SLACK = 64;
+
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    // Unaligned, as the alignment checks of the aligned layouts cost more than the accesses, which are aligned anyway
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+
+    // The entries, followed by the slots from slotsOffset on
+    private Arena memoryArena;
+    private MemorySegment memory;
+    private long memoryAddress;
+    private long slotsOffset;
+    private int mask;
+    private Arena namesArena;
+    private MemorySegment names;
+    private long namesAddress;
+    private int size;
+    private long namesEnd;
+    private final int probeStride;
+
+    StationTable(MeasurementParser parser) {
+        this(parser, EXPECTED_CITIES);
+    }
+
+    /**
+     * Creates a table for the given parser which holds the given number of stations without growing.
+     */
+    StationTable(MeasurementParser parser, int expectedStations) {
+        this.probeStride = parser.probeStride();
+        int slotCount = INITIAL_SIZE;
+        while (expectedStations > slotCount >>> 2) {
+            slotCount <<= 1;
+        }
+        int stations = Math.max(expectedStations, EXPECTED_CITIES);
+        this.slotsOffset = (long) (stations + 1) << ENTRY_SHIFT;
+        this.memoryArena = Arena.ofShared();
+        this.memory = allocate(memoryArena, slotsOffset + (long) slotCount * Integer.BYTES);
+        this.memoryAddress = memory.address();
+        this.mask = slotCount - 1;
+        this.namesArena = Arena.ofShared();
+        this.names = allocate(namesArena, (long) stations * NAME_BYTES + NAME_SLACK);
+        this.namesAddress = names.address();
+    }
+
+    /**
+     * Returns the mask of the slot index, which changes when the table grows.
+     */
+    int mask() {
+        return mask;
+    }
+
+    /**
+     * Returns the address of the slots, which changes when the table grows.
+     */
+    long slotsAddress() {
+        return memoryAddress + slotsOffset;
+    }
+
+    /**
+     * Returns the address of the entries, which changes when the table grows.
+     */
+    long entriesAddress() {
+        return memoryAddress;
+    }
+
+    /**
+     * Returns the address of the names, which changes when stations are added.
+     */
+    long namesAddress() {
+        return namesAddress;
+    }
+
+    /**
+     * Returns the segment holding the entries, at their offsets, and the slots from {@link #slotsOffset()} on. It
+     * changes when the table grows, that is only when a station is inserted.
+     */
+    MemorySegment memory() {
+        return memory;
+    }
+
+    /**
+     * Returns the offset of the slots in {@link #memory()}, which changes with it.
+     */
+    long slotsOffset() {
+        return slotsOffset;
+    }
+
+    /**
+     * Returns the station in the slot at {@code index}, or 0 if the slot is empty.
+     */
+    long entryAt(int index) {
+        return entryAt(memory, slotsOffset, index);
+    }
+
+    /**
+     * Returns the station in the slot at {@code index} of the given {@link #memory()}, or 0 if the slot is empty.
+     */
+    static long entryAt(MemorySegment memory, long slotsOffset, int index) {
+        return (long) memory.get(INT, slotsOffset + ((long) index << 2)) << ENTRY_SHIFT;
+    }
+
+    long firstWord(long entry) {
+        return firstWord(memory, entry);
+    }
+
+    static long firstWord(MemorySegment memory, long entry) {
+        return memory.get(LONG, entry + FIRST_WORD);
+    }
+
+    long secondWord(long entry) {
+        return secondWord(memory, entry);
+    }
+
+    static long secondWord(MemorySegment memory, long entry) {
+        return memory.get(LONG, entry + SECOND_WORD);
+    }
+
+    int nameLength(long entry) {
+        return nameLength(memory, entry);
+    }
+
+    static int nameLength(MemorySegment memory, long entry) {
+        return memory.get(INT, entry + NAME_LENGTH);
+    }
+
+    /**
+     * Returns the little endian word at byte {@code offset} of the station's name followed by ';'.
+     */
+    long nameWordAt(long entry, int offset) {
+        return names.get(WORD, nameOffset(entry) + offset);
+    }
+
+    /**
+     * Returns the offset of the station's name in {@link #names()}.
+     */
+    long nameOffset(long entry) {
+        return nameOffset(memory, entry);
+    }
+
+    static long nameOffset(MemorySegment memory, long entry) {
+        return memory.get(LONG, entry + NAME);
+    }
+
+    /**
+     * Returns the segment holding the names, which changes when names are added.
+     */
+    MemorySegment names() {
+        return names;
+    }
+
+    void record(long entry, long number) {
+        record(memory, entry, number);
+    }
+
+    /**
+     * Adds a measurement to the station in the given {@link #memory()}. The entry is updated through a slice of its own,
+     * which is bounds checked once, so that the accesses at constant offsets within it need no checks of their own.
+     */
+    static void record(MemorySegment memory, long entry, long number) {
+        MemorySegment station = memory.asSlice(entry, 1L << ENTRY_SHIFT);
+        int value = (int) number;
+        if (value < station.get(INT, MIN)) {
+            station.set(INT, MIN, value);
+        }
+        if (value > station.get(INT, MAX)) {
+            station.set(INT, MAX, value);
+        }
+        station.set(LONG, SUM, station.get(LONG, SUM) + number);
+        station.set(LONG, COUNT, station.get(LONG, COUNT) + 1);
+    }
+
+    /**
+     * Inserts the station with the {@code nameLength} bytes at {@code offset} of {@code data} as name into the empty
+     * slot at {@code index}, which the parser selected by probing from {@code hash}, and returns it.
+     */
+    long insert(int index, int hash, MemorySegment data, long offset, int nameLength) {
+        long nameOffset = addName(data, offset, nameLength);
+        long entry = (long) (size + 1) << ENTRY_SHIFT;
+        MemorySegment memory = this.memory;
+        memory.set(LONG, entry + FIRST_WORD, names.get(WORD, nameOffset));
+        memory.set(LONG, entry + SECOND_WORD, names.get(WORD, nameOffset + Long.BYTES));
+        memory.set(INT, entry + MIN, MAX_TEMP);
+        memory.set(INT, entry + MAX, MIN_TEMP);
+        memory.set(INT, entry + NAME_LENGTH, nameLength);
+        memory.set(INT, entry + HASH, hash);
+        memory.set(LONG, entry + NAME, nameOffset);
+        memory.set(INT, slotsOffset + ((long) index << 2), size + 1);
+        size++;
+        boolean slotsFull = size > mask >>> 1;
+        boolean entriesFull = entry + (2L << ENTRY_SHIFT) > slotsOffset;
+        if (slotsFull || entriesFull) {
+            resize(entriesFull ? slotsOffset << 1 : slotsOffset, slotsFull ? (mask + 1) << 1 : mask + 1);
+        }
+        return entry;
+    }
+
+    /**
+     * Looks up or inserts the station with the given name, probing from the slot selected by {@code hash}.
+     * This is the generic path for parsers which do not inline their own probing.
+     */
+    long find(int hash, MemorySegment data, long offset, int nameLength) {
+        int mask = this.mask;
+        for (int index = hash & mask;; index = (index + probeStride) & mask) {
+            long entry = entryAt(index);
+            if (entry == 0) {
+                return insert(index, hash, data, offset, nameLength);
+            }
+            if (nameLength(entry) == nameLength
+                    && MemorySegment.mismatch(data, offset, offset + nameLength, names, nameOffset(entry), nameOffset(entry) + nameLength) == -1) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of stations in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the station inserted as the {@code station}-th, counting from 0.
+     */
+    long entry(int station) {
+        return (long) (station + 1) << ENTRY_SHIFT;
+    }
+
+    long count(long entry) {
+        return memory.get(LONG, entry + COUNT);
+    }
+
+    byte[] name(long entry) {
+        long offset = nameOffset(entry);
+        return names.asSlice(offset, nameLength(entry)).toArray(ValueLayout.JAVA_BYTE);
+    }
+
+    StationStats toStats(long entry) {
+        return new StationStats(memory.get(INT, entry + MIN), memory.get(INT, entry + MAX),
+                memory.get(LONG, entry + SUM), count(entry));
+    }
+
+    /**
+     * Clears the measurements of all stations, keeping the stations.
+     */
+    void reset() {
+        for (int station = 0; station < size; station++) {
+            long entry = entry(station);
+            memory.set(INT, entry + MIN, MAX_TEMP);
+            memory.set(INT, entry + MAX, MIN_TEMP);
+            memory.set(LONG, entry + SUM, 0);
+            memory.set(LONG, entry + COUNT, 0);
+        }
+    }
+
+    /**
+     * Returns an estimate of the memory taken by this table: the slots and the entries and names in use, leaving out
+     * the space reserved for further stations, so that a new table stays below small spill thresholds.
+     */
+    long estimatedBytes() {
+        return (long) (mask + 1) * Integer.BYTES + ((long) size << ENTRY_SHIFT) + namesEnd;
+    }
+
+    /**
+     * Releases the segments of this table. Segments and addresses obtained from it must no longer be used.
+     */
+    @Override
+    public void close() {
+        memoryArena.close();
+        namesArena.close();
+    }
+
+    void mergeInto(Map<String, StationStats> target) {
+        mergeInto(target, 0);
+    }
+
+    /**
+     * Merges the stations inserted from the given position on, skipping those without measurements.
+     */
+    void mergeInto(Map<String, StationStats> target, int from) {
+        for (int station = from; station < size; station++) {
+            long entry = entry(station);
+            if (count(entry) == 0) {
+                continue;
+            }
+            String name = new String(name(entry), StandardCharsets.UTF_8);
+            StationStats current = target.get(name);
+            if (current == null) {
+                target.put(name, toStats(entry));
+            }
+            else {
+                current.accumulate(toStats(entry));
+            }
+        }
+    }
+
+    // Appends the name, returning its offset
+    private long addName(MemorySegment data, long offset, int nameLength) {
+        long padded = Math.max(2 * Long.BYTES, (nameLength + Long.BYTES) & -Long.BYTES);
+        if (namesEnd + padded + NAME_SLACK > names.byteSize()) {
+            Arena arena = Arena.ofShared();
+            MemorySegment copy = allocate(arena, Math.max(names.byteSize() << 1, namesEnd + padded + NAME_SLACK));
+            MemorySegment.copy(names, 0, copy, 0, names.byteSize());
+            namesArena.close();
+            namesArena = arena;
+            names = copy;
+            namesAddress = names.address();
+        }
+        long nameOffset = namesEnd;
+        MemorySegment.copy(data, offset, names, nameOffset, nameLength);
+        names.set(ValueLayout.JAVA_BYTE, nameOffset + nameLength, (byte) ';');
+        namesEnd += padded;
+        return nameOffset;
+    }
+
+    // Moves the entries and slots into a new segment with room for the given bytes of entries and number of slots,
+    // re-inserting the entries if the number of slots changes
+    private void resize(long entriesBytes, int slotCount) {
+        Arena arena = Arena.ofShared();
+        MemorySegment resized = allocate(arena, entriesBytes + (long) slotCount * Integer.BYTES);
+        MemorySegment.copy(memory, 0, resized, 0, (long) (size + 1) << ENTRY_SHIFT);
+        if (slotCount == mask + 1) {
+            MemorySegment.copy(memory, slotsOffset, resized, entriesBytes, (long) slotCount * Integer.BYTES);
+        }
+        else {
+            int mask = slotCount - 1;
+            for (int station = 1; station <= size; station++) {
+                int index = resized.get(INT, ((long) station << ENTRY_SHIFT) + HASH) & mask;
+                while (resized.get(INT, entriesBytes + ((long) index << 2)) != 0) {
+                    index = (index + probeStride) & mask;
+                }
+                resized.set(INT, entriesBytes + ((long) index << 2), station);
+            }
+            this.mask = mask;
+        }
+        memoryArena.close();
+        memoryArena = arena;
+        memory = resized;
+        memoryAddress = resized.address();
+        slotsOffset = entriesBytes;
+    }
+
+    private static MemorySegment allocate(Arena arena, long size) {
+        return arena.allocate(size, Long.BYTES);
+    }
+}
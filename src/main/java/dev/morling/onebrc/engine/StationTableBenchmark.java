@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+
+/**
+ * Measures each parsing kernel on synthetic input with 10K, 100K, 1M and 5M distinct station names, i.e. below, above
+ * and far above the size the {@link StationTable} starts with, together with the {@link SharedStationTable} which all
+ * workers update instead of merging per-worker tables, to find the number of stations from which sharing pays off on a
+ * given machine. Every name appears at least once, so the number of stations in the result is checked as well. Random
+ * names are 4 to 27 bytes long, so that both the one and two word fast path and the long name path of the kernels are
+ * taken; the sequential sensor IDs differ in a few digits only, which a table hashing only some of the name bytes, or
+ * folding them without mixing, maps onto few slots. Run with:
+ *
+ * <pre>
+ * java --enable-preview --enable-native-access=ALL-UNNAMED --add-modules jdk.incubator.vector -Xmx4g \
+ *     -cp target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.engine.StationTableBenchmark [lines] [runs] [threads]
+ * </pre>
+ */
+public final class StationTableBenchmark {
+    private static final int[] KEY_COUNTS = { 10_000, 100_000, 1_000_000, 5_000_000 };
+
+    // Printf formats of sequential IDs, of one word, two words and more than two words; null for random names
+    private static final String[] KEY_FORMATS = { null, "station-%07d", "st%07d-sensor", "sensor-network-%07d-temperature" };
+
+    public static void main(String[] args) throws IOException {
+        long lines = args.length > 0 ? Long.parseLong(args[0]) : 20_000_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        List<ParserKind> kinds = new ArrayList<>(List.of(ParserKind.SWAR, ParserKind.SWAR_SEGMENT, ParserKind.SCALAR));
+        if (ParserSelector.vectorApiAvailable()) {
+            kinds.add(ParserKind.VECTOR);
+        }
+
+        System.out.printf("%-32s %-10s %-14s %10s %10s %12s%n", "names", "keys", "parser", "best ms", "mean ms", "ns per line");
+        for (String format : KEY_FORMATS) {
+            for (int keys : KEY_COUNTS) {
+                measure(format, keys, lines, runs, threads, kinds);
+            }
+        }
+    }
+
+    private static void measure(String format, int keys, long lines, int runs, int threads, List<ParserKind> kinds) throws IOException {
+        Map<String, AggregationEngine> engines = new LinkedHashMap<>();
+        for (ParserKind kind : kinds) {
+            engines.put(kind.toString(), AggregationEngine.builder().threads(threads).parser(kind).build());
+        }
+        engines.put("SHARED", AggregationEngine.builder().threads(threads).sharedTable(keys).build());
+        try (var arena = Arena.ofShared()) {
+            MemorySegment input = generate(format, keys, Math.max(lines, keys), arena);
+            for (Map.Entry<String, AggregationEngine> entry : engines.entrySet()) {
+                AggregationEngine engine = entry.getValue();
+                // Warm up
+                run(engine, input, keys);
+                long best = Long.MAX_VALUE;
+                long total = 0;
+                for (int i = 0; i < runs; i++) {
+                    long start = System.nanoTime();
+                    run(engine, input, keys);
+                    long elapsed = System.nanoTime() - start;
+                    best = Math.min(best, elapsed);
+                    total += elapsed;
+                }
+                System.out.printf("%-32s %-10d %-14s %10d %10d %12.1f%n", format == null ? "random" : format, keys, entry.getKey(),
+                        best / 1_000_000, total / runs / 1_000_000, (double) best / Math.max(lines, keys));
+            }
+        }
+    }
+
+    private static void run(AggregationEngine engine, MemorySegment input, int keys) throws IOException {
+        SortedMap<String, StationStats> result = engine.aggregate(new MappedChunkSource(input, AggregationEngine.DEFAULT_SEGMENT_SIZE));
+        if (result.size() != keys) {
+            throw new IllegalStateException("Expected " + keys + " stations, got " + result.size());
+        }
+    }
+
+    // The first lines hold each name once, the remaining ones random names
+    private static MemorySegment generate(String format, int keys, long lines, Arena arena) {
+        SplittableRandom random = new SplittableRandom(42);
+        byte[][] names = new byte[keys][];
+        for (int i = 0; format != null && i < keys; i++) {
+            names[i] = String.format(format, i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; format == null && i < keys; i++) {
+            StringBuilder name = new StringBuilder(Integer.toString(i, 36));
+            int length = 3 + random.nextInt(24);
+            while (name.length() < length) {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+            // The index prefix keeps names unique; a separator keeps them from being prefixes of each other
+            names[i] = name.insert(Integer.toString(i, 36).length(), '_').toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        long size = 0;
+        int[] picks = new int[Math.toIntExact(lines)];
+        for (int i = 0; i < picks.length; i++) {
+            picks[i] = i < keys ? i : random.nextInt(keys);
+            size += names[picks[i]].length + ";-99.9\n".length();
+        }
+        byte[][] values = new byte[StationTable.MAX_TEMP - StationTable.MIN_TEMP + 1][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (";" + (StationTable.MIN_TEMP + i) / 10.0 + "\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        MemorySegment input = arena.allocate(size);
+        long offset = 0;
+        for (int pick : picks) {
+            byte[] name = names[pick];
+            MemorySegment.copy(name, 0, input, ValueLayout.JAVA_BYTE, offset, name.length);
+            offset += name.length;
+            byte[] value = values[random.nextInt(values.length)];
+            MemorySegment.copy(value, 0, input, ValueLayout.JAVA_BYTE, offset, value.length);
+            offset += value.length;
+        }
+        return input.asSlice(0, offset);
+    }
+}
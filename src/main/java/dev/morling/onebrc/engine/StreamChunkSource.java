@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Chunks from a sequential channel such as a pipe. A reader thread fills a fixed pool of direct buffers, moves the
+ * trailing partial line of each buffer to the start of the next one, and queues the buffers for the workers, which
+ * return them to the pool via {@link #release(Chunk)}. With one buffer per worker plus two, the reader can always fill
+ * ahead while all workers are busy, so throughput is bounded by the channel.
+ * <p>
+ * The channel is not closed. Closing the source before the input was consumed, e.g. after a worker failed, stops the
+ * reader without interrupting it, as that would close an interruptible channel such as standard input: the reader is
+ * woken if it waits for a buffer or for room in the queue, and exits before its next read. If it is blocked reading the
+ * channel, it releases the buffers itself once that read returns.
+ */
+final class StreamChunkSource implements ChunkSource {
+    private static final Chunk END = new Chunk(MemorySegment.NULL, 0, 0, -1);
+
+    private final ReadableByteChannel channel;
+    private final int bufferSize;
+    private final Arena arena = Arena.ofShared();
+    private final BlockingQueue<MemorySegment> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread reader;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    // Whether the reader exited, guarded by this; the buffers are released by whichever of close() and the reader
+    // comes last
+    private boolean readerDone;
+
+    StreamChunkSource(ReadableByteChannel channel, int bufferSize, int workers) {
+        this.channel = channel;
+        this.bufferSize = bufferSize;
+        int buffers = workers + 2;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.filled = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            free.add(arena.allocate(bufferSize + 1 + Chunk.PADDING));
+        }
+        this.reader = new Thread(this::readAll, "onebrc-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+        try {
+            Chunk chunk = filled.take();
+            if (chunk == END) {
+                // Leave the marker for the other workers
+                filled.put(END);
+                if (failure != null) {
+                    throw new IOException("Reading the input failed", failure);
+                }
+                return null;
+            }
+            return chunk;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+    }
+
+    @Override
+    public void release(Chunk chunk) {
+        free.add(chunk.data());
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (!readerDone) {
+                // Wake the reader, which releases the buffers as it exits
+                filled.clear();
+                free.offer(MemorySegment.NULL);
+                return;
+            }
+        }
+        arena.close();
+    }
+
+    private void readAll() {
+        try {
+            MemorySegment buffer = take();
+            if (buffer == null) {
+                return;
+            }
+            int carry = 0;
+            long position = 0;
+            while (true) {
+                ByteBuffer target = buffer.asByteBuffer().limit(bufferSize).position(carry);
+                boolean eof = fill(target);
+                int length = target.position();
+                if (eof) {
+                    if (length > 0) {
+                        if (buffer.get(ValueLayout.JAVA_BYTE, length - 1) != '\n') {
+                            // Tolerate a missing line break at the end of the input.
+                            buffer.set(ValueLayout.JAVA_BYTE, length++, (byte) '\n');
+                        }
+                        filled.put(new Chunk(buffer, 0, length, position));
+                    }
+                    break;
+                }
+
+                int end = lastNewLine(buffer, length) + 1;
+                if (end == 0) {
+                    throw new IOException("Line exceeds the buffer size of " + bufferSize + " bytes");
+                }
+                MemorySegment next = take();
+                if (next == null) {
+                    return;
+                }
+                carry = length - end;
+                MemorySegment.copy(buffer, end, next, 0, carry);
+                filled.put(new Chunk(buffer, 0, end, position));
+                if (closed) {
+                    return;
+                }
+                position += end;
+                buffer = next;
+            }
+        }
+        catch (Throwable t) {
+            failure = t;
+        }
+        finally {
+            // Even after a failure, so that no worker waits for input forever
+            filled.offer(END);
+            exited();
+        }
+    }
+
+    // Takes a free buffer, or returns null if the source was closed before the input was consumed
+    private MemorySegment take() throws InterruptedException {
+        MemorySegment buffer = free.take();
+        return closed ? null : buffer;
+    }
+
+    private void exited() {
+        synchronized (this) {
+            readerDone = true;
+            if (!closed) {
+                return;
+            }
+        }
+        arena.close();
+    }
+
+    // Reads until the buffer is full or the channel is exhausted; returns true in the latter case.
+    private boolean fill(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target) == -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int lastNewLine(MemorySegment buffer, int length) {
+        int position = length - 1;
+        while (position >= 0 && buffer.get(ValueLayout.JAVA_BYTE, position) != '\n') {
+            position--;
+        }
+        return position;
+    }
+}
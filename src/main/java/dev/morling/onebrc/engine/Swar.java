@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * The word-wise operations shared by the SWAR kernels, which differ only in how they read the input and the table.
+ * Words are little endian, so the first byte of the input is the lowest byte of a word.
+ */
+final class Swar {
+
+    // Keeps the bytes up to and including the delimiter of the first name word, indexed by the delimiter's position
+    static final long[] MASK1 = new long[]{ 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFFFL,
+            0xFFFFFFFFFFFFFFFFL };
+    // Keeps the second name word only if the first one holds no delimiter
+    static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+    private Swar() {
+    }
+
+    /**
+     * Returns a mask with the high bit set in each byte of {@code word} which is ';', or 0 if there is none.
+     */
+    static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    /**
+     * Returns a mask with the high bit set in each byte of {@code word} which is '\n', or 0 if there is none.
+     */
+    static long findNewLine(long word) {
+        long input = word ^ 0x0A0A0A0A0A0A0A0AL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    static int hashToInt(long hash) {
+        // Multiplied, so that every bit of the name words reaches the low bits used as table index; folding alone maps
+        // the digits of sequential IDs such as "station-0001234" onto few slots
+        long mixed = (hash ^ (hash >>> 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32);
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        // Now digits is in the form 0xUU00TTHH00 (UU: units digit, TT: tens digit, HH: hundreds digit)
+        // 0xUU00TTHH00 * (100 * 0x1000000 + 10 * 0x10000 + 1) =
+        // 0x000000UU00TTHH00 + 0x00UU00TTHH000000 * 10 + 0xUU00TTHH00000000 * 100
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * The parse loop of {@code CalculateAverage_thomaswue}: each chunk is split into three parts which are scanned
+ * interleaved in the same thread, names are located with SWAR delimiter search over the first two words, and numbers
+ * are converted with Quan Anh Mai's branchless conversion.
+ */
+final class SwarParser implements MeasurementParser {
+
+    // The probe sequence of thomaswue's kernel
+    static final int PROBE_STRIDE = 31;
+
+    @Override
+    public int probeStride() {
+        return PROBE_STRIDE;
+    }
+
+    @Override
+    public void parse(Chunk chunk, StationTable table) {
+        MemorySegment data = chunk.data();
+        long base = data.address();
+        long segmentStart = base + chunk.start();
+        long segmentEnd = base + chunk.end();
+
+        long dist = (segmentEnd - segmentStart) / 3;
+        long midPoint1 = nextNewLine(segmentStart + dist) + 1;
+        long midPoint2 = nextNewLine(segmentStart + dist + dist) + 1;
+
+        Scanner scanner1 = new Scanner(segmentStart, midPoint1);
+        Scanner scanner2 = new Scanner(midPoint1, midPoint2);
+        Scanner scanner3 = new Scanner(midPoint2, segmentEnd);
+        while (true) {
+            if (!scanner1.hasNext()) {
+                break;
+            }
+            if (!scanner2.hasNext()) {
+                break;
+            }
+            if (!scanner3.hasNext()) {
+                break;
+            }
+            long word1 = scanner1.getLong();
+            long word2 = scanner2.getLong();
+            long word3 = scanner3.getLong();
+            long delimiterMask1 = Swar.findDelimiter(word1);
+            long delimiterMask2 = Swar.findDelimiter(word2);
+            long delimiterMask3 = Swar.findDelimiter(word3);
+            long word1b = Scanner.getLongAt(scanner1.pos() + 8);
+            long word2b = Scanner.getLongAt(scanner2.pos() + 8);
+            long word3b = Scanner.getLongAt(scanner3.pos() + 8);
+            long delimiterMask1b = Swar.findDelimiter(word1b);
+            long delimiterMask2b = Swar.findDelimiter(word2b);
+            long delimiterMask3b = Swar.findDelimiter(word3b);
+            long existingResult1 = findResult(data, word1, delimiterMask1, word1b, delimiterMask1b, scanner1, table);
+            long existingResult2 = findResult(data, word2, delimiterMask2, word2b, delimiterMask2b, scanner2, table);
+            long existingResult3 = findResult(data, word3, delimiterMask3, word3b, delimiterMask3b, scanner3, table);
+            long number1 = scanNumber(scanner1);
+            long number2 = scanNumber(scanner2);
+            long number3 = scanNumber(scanner3);
+            record(table, existingResult1, number1);
+            record(table, existingResult2, number2);
+            record(table, existingResult3, number3);
+        }
+
+        parseRemaining(data, scanner1, table);
+        parseRemaining(data, scanner2, table);
+        parseRemaining(data, scanner3, table);
+    }
+
+    private static void parseRemaining(MemorySegment data, Scanner scanner, StationTable table) {
+        while (scanner.hasNext()) {
+            long word = scanner.getLong();
+            long pos = Swar.findDelimiter(word);
+            long wordB = Scanner.getLongAt(scanner.pos() + 8);
+            long posB = Swar.findDelimiter(wordB);
+            record(table, findResult(data, word, pos, wordB, posB, scanner, table), scanNumber(scanner));
+        }
+    }
+
+    private static long findResult(MemorySegment data, long initialWord, long initialDelimiterMask, long wordB, long delimiterMaskB, Scanner scanner,
+                                   StationTable table) {
+        int tableMask = table.mask();
+        long existingResult;
+        long word = initialWord;
+        long delimiterMask = initialDelimiterMask;
+        long hash;
+        long nameAddress = scanner.pos();
+        long word2 = wordB;
+        long delimiterMask2 = delimiterMaskB;
+        if ((delimiterMask | delimiterMask2) != 0) {
+            int letterCount1 = Long.numberOfTrailingZeros(delimiterMask) >>> 3; // value between 1 and 8
+            int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3; // value between 0 and 8
+            long mask = Swar.MASK2[letterCount1];
+            word = word & Swar.MASK1[letterCount1];
+            word2 = mask & word2 & Swar.MASK1[letterCount2];
+            hash = word ^ word2;
+            existingResult = entryAt(table, Swar.hashToInt(hash) & tableMask);
+            scanner.add(letterCount1 + (letterCount2 & mask));
+            long entryAddress = table.entriesAddress() + existingResult;
+            if (existingResult != 0 && Scanner.getLongAt(entryAddress + StationTable.FIRST_WORD) == word
+                    && Scanner.getLongAt(entryAddress + StationTable.SECOND_WORD) == word2) {
+                return existingResult;
+            }
+        }
+        else {
+            // Slow-path for when the ';' could not be found in the first 16 bytes.
+            hash = word ^ word2;
+            scanner.add(16);
+            while (true) {
+                word = scanner.getLong();
+                delimiterMask = Swar.findDelimiter(word);
+                if (delimiterMask != 0) {
+                    int trailingZeros = Long.numberOfTrailingZeros(delimiterMask);
+                    word = (word << (63 - trailingZeros));
+                    scanner.add(trailingZeros >>> 3);
+                    hash ^= word;
+                    break;
+                }
+                else {
+                    scanner.add(8);
+                    hash ^= word;
+                }
+            }
+        }
+
+        // Save length of name for later.
+        int nameLength = (int) (scanner.pos() - nameAddress);
+
+        // Final calculation for index into hash table.
+        int hashAsInt = Swar.hashToInt(hash);
+        int tableIndex = hashAsInt & tableMask;
+        outer: while (true) {
+            existingResult = entryAt(table, tableIndex);
+            if (existingResult == 0) {
+                existingResult = table.insert(tableIndex, hashAsInt, data, nameAddress - data.address(), nameLength);
+            }
+            long existingName = table.namesAddress() + Scanner.getLongAt(table.entriesAddress() + existingResult + StationTable.NAME);
+            // Check for collision.
+            int i = 0;
+            for (; i < nameLength + 1 - 8; i += 8) {
+                if (Scanner.getLongAt(existingName + i) != Scanner.getLongAt(nameAddress + i)) {
+                    // Collision error, try next.
+                    tableIndex = (tableIndex + PROBE_STRIDE) & tableMask;
+                    continue outer;
+                }
+            }
+
+            int remainingShift = (64 - ((nameLength + 1 - i) << 3));
+            if (((Scanner.getLongAt(existingName + i) ^ Scanner.getLongAt(nameAddress + i)) << remainingShift) == 0) {
+                break;
+            }
+            else {
+                // Collision error, try next.
+                tableIndex = (tableIndex + PROBE_STRIDE) & tableMask;
+            }
+        }
+        return existingResult;
+    }
+
+    // The table is read by address as well, see StationTable
+    private static long entryAt(StationTable table, int index) {
+        return (long) Scanner.getIntAt(table.slotsAddress() + ((long) index << 2)) << StationTable.ENTRY_SHIFT;
+    }
+
+    private static void record(StationTable table, long entry, long number) {
+        long address = table.entriesAddress() + entry;
+        int value = (int) number;
+        if (value < Scanner.getIntAt(address + StationTable.MIN)) {
+            Scanner.putIntAt(address + StationTable.MIN, value);
+        }
+        if (value > Scanner.getIntAt(address + StationTable.MAX)) {
+            Scanner.putIntAt(address + StationTable.MAX, value);
+        }
+        Scanner.putLongAt(address + StationTable.SUM, Scanner.getLongAt(address + StationTable.SUM) + number);
+        Scanner.putLongAt(address + StationTable.COUNT, Scanner.getLongAt(address + StationTable.COUNT) + 1);
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = Scanner.getLongAt(prev);
+            long pos = Swar.findNewLine(currentWord);
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    private static long scanNumber(Scanner scanPtr) {
+        long numberWord = Scanner.getLongAt(scanPtr.pos() + 1);
+        int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+        long number = Swar.convertIntoNumber(decimalSepPos, numberWord);
+        scanPtr.add((decimalSepPos >>> 3) + 4);
+        return number;
+    }
+}
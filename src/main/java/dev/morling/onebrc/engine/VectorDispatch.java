@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.ValueLayout;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Picks the vector configuration of the {@link VectorParser} for the data at hand, instead of fixing it per entry
+ * like {@code CalculateAverage_merykitty} (256 bits if available) or {@code CalculateAverage_serkan_ozal} (128 bits).
+ * <p>
+ * A histogram of the name lengths in a sample determines the narrowest species whose vector holds name and delimiter of
+ * at least {@link #COVERAGE} of the lines; narrower vectors are cheaper, but every name not fitting takes the scalar
+ * path. Masked name comparison avoids the fixed-size name buffers, but only pays off where the hardware has mask
+ * registers. The Vector API does not tell whether it has, so this is a heuristic: masked comparison is used if the
+ * selected species is 512 bits wide, which the JIT only offers with AVX-512, or on AArch64 if vectors wider than 128
+ * bits are offered at all, which takes SVE. Both have mask registers. Other hardware with mask registers compares
+ * unmasked.
+ */
+record VectorDispatch(VectorSpecies<Byte> species, boolean masked) {
+    static final double COVERAGE = 0.99;
+    private static final System.Logger LOGGER = System.getLogger(VectorDispatch.class.getName());
+    private static final int MAX_NAME_LENGTH = 100;
+
+    static VectorDispatch forSample(Chunk sample) {
+        int[] histogram = nameLengthHistogram(sample);
+        long lines = 0;
+        for (int count : histogram) {
+            lines += count;
+        }
+
+        int maxBits = ByteVector.SPECIES_PREFERRED.vectorBitSize();
+        VectorSpecies<Byte> species = null;
+        for (int bits = 128; bits <= maxBits && species == null; bits <<= 1) {
+            long covered = 0;
+            // Name plus delimiter must fit into the vector
+            for (int length = 0; length < bits / 8 && length < histogram.length; length++) {
+                covered += histogram[length];
+            }
+            if (covered >= lines * COVERAGE) {
+                species = ByteVector.SPECIES_128.withShape(VectorShape.forBitSize(bits));
+            }
+        }
+        if (species == null) {
+            species = ByteVector.SPECIES_PREFERRED;
+        }
+        boolean masked = hasMaskRegisters(species);
+
+        LOGGER.log(System.Logger.Level.DEBUG, "Using {0} (masked: {1}) for {2} sampled lines", species, masked, lines);
+        return new VectorDispatch(species, masked);
+    }
+
+    private static boolean hasMaskRegisters(VectorSpecies<Byte> species) {
+        if (species.vectorBitSize() >= 512) {
+            return true;
+        }
+        return System.getProperty("os.arch").equals("aarch64") && ByteVector.SPECIES_MAX.vectorBitSize() > 128;
+    }
+
+    static int[] nameLengthHistogram(Chunk sample) {
+        int[] histogram = new int[MAX_NAME_LENGTH + 1];
+        long offset = sample.start();
+        while (offset < sample.end()) {
+            long nameStart = offset;
+            while (sample.data().get(ValueLayout.JAVA_BYTE, offset) != ';') {
+                offset++;
+            }
+            histogram[(int) Math.min(MAX_NAME_LENGTH, offset - nameStart)]++;
+            while (sample.data().get(ValueLayout.JAVA_BYTE, offset) != '\n') {
+                offset++;
+            }
+            offset++;
+        }
+        return histogram;
+    }
+
+    VectorParser newParser() {
+        return new VectorParser(species, masked);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The line kernel of {@code CalculateAverage_merykitty}: a whole vector is loaded at the start of each line, the
+ * delimiter is located with a vector compare, and the name is compared against the table entry in a single vector
+ * compare as well. Names longer than a vector fall back to a scalar scan. The species and whether the name comparison
+ * uses masked loads are chosen per run by {@link VectorDispatch}.
+ */
+final class VectorParser implements MeasurementParser {
+    private static final ValueLayout.OfLong JAVA_LONG_LT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final VectorSpecies<Byte> species;
+    private final boolean masked;
+
+    VectorParser(VectorSpecies<Byte> species, boolean masked) {
+        this.species = species;
+        this.masked = masked;
+    }
+
+    @Override
+    public void parse(Chunk chunk, StationTable table) {
+        MemorySegment data = chunk.data();
+        long end = chunk.end();
+        long offset = chunk.start();
+        while (offset < end) {
+            offset = iterate(table, data, offset);
+        }
+    }
+
+    // Parses the line starting at offset, returning the offset of the next line.
+    private long iterate(StationTable table, MemorySegment data, long offset) {
+        var line = ByteVector.fromMemorySegment(species, data, offset, ByteOrder.LITTLE_ENDIAN);
+        long semicolons = line.compare(VectorOperators.EQ, (byte) ';').toLong();
+
+        // The name is longer than the vector, fall back to scalar processing
+        if (semicolons == 0) {
+            int keySize = species.length();
+            while (data.get(ValueLayout.JAVA_BYTE, offset + keySize) != ';') {
+                keySize++;
+            }
+            long station = table.find(hash(data, offset, keySize), data, offset, keySize);
+            return parseDataPoint(table, station, data, offset + keySize + 1);
+        }
+
+        int keySize = Long.numberOfTrailingZeros(semicolons);
+        int mask = table.mask();
+        long station;
+        int hash = hash(data, offset, keySize);
+        for (int bucket = hash & mask;; bucket = (bucket + 1) & mask) {
+            station = table.entryAt(bucket);
+            if (station == 0) {
+                station = table.insert(bucket, hash, data, offset, keySize);
+                break;
+            }
+            if (table.nameLength(station) != keySize) {
+                continue;
+            }
+
+            if (masked) {
+                VectorMask<Byte> keyMask = species.indexInRange(0, keySize + 1);
+                var stationKey = ByteVector.fromMemorySegment(species, table.names(), table.nameOffset(station), ByteOrder.LITTLE_ENDIAN, keyMask);
+                if (!line.compare(VectorOperators.NE, stationKey, keyMask).anyTrue()) {
+                    break;
+                }
+            }
+            else {
+                var stationKey = ByteVector.fromMemorySegment(species, table.names(), table.nameOffset(station), ByteOrder.LITTLE_ENDIAN);
+                long eqMask = line.compare(VectorOperators.EQ, stationKey).toLong();
+                long validMask = semicolons ^ (semicolons - 1);
+                if ((eqMask & validMask) == validMask) {
+                    break;
+                }
+            }
+        }
+        return parseDataPoint(table, station, data, offset + keySize + 1);
+    }
+
+    private static int hash(MemorySegment data, long offset, int keySize) {
+        int x;
+        int y;
+        if (keySize >= Integer.BYTES) {
+            x = data.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+            y = data.get(ValueLayout.JAVA_INT_UNALIGNED, offset + keySize - Integer.BYTES);
+        }
+        else {
+            x = data.get(ValueLayout.JAVA_BYTE, offset);
+            y = data.get(ValueLayout.JAVA_BYTE, offset + keySize - Byte.BYTES);
+        }
+        int seed = 0x9E3779B9;
+        int rotate = 5;
+        return (Integer.rotateLeft(x * seed, rotate) ^ y) * seed; // FxHash
+    }
+
+    // Branchless parsing of the number following the delimiter, returns the offset of the next line
+    private static long parseDataPoint(StationTable table, long station, MemorySegment data, long offset) {
+        long word = data.get(JAVA_LONG_LT, offset);
+        // The 4th binary digit of the ascii of a digit is 1 while that of the '.' is 0
+        int decimalSepPos = Long.numberOfTrailingZeros(~word & 0x10101000);
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~word << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        long digits = ((word & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        table.record(station, (absValue ^ signed) - signed);
+        return offset + (decimalSepPos >>> 3) + 3;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Work stealing like {@link MappedChunkSource}, but instead of mapping the files as a whole, windows of
+ * {@code windowSize} bytes are mapped when the first of their segments is claimed and unmapped once all of their
+ * segments were processed. As workers claim segments in file order, only the windows around the cursor are mapped at
+ * any time, which bounds the resident set of the process independently of the input size.
+ * <p>
+ * Each mapping extends {@link #LINE_OVERLAP} bytes into the next window, so that the line crossing the window end and
+ * the padding after it can be read from the same mapping.
+ */
+final class WindowedChunkSource implements ChunkSource {
+    // Longest line (100 bytes name, ';', "-99.9", '\n') plus chunk padding
+    static final int LINE_OVERLAP = 108 + Chunk.PADDING;
+
+    private final FileChannel[] files;
+    private final long[] fileSizes;
+    private final long[] fileStarts;
+    private final int segmentSize;
+    private final long windowSize;
+    private final long totalSize;
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicReferenceArray<Window> windows;
+    // Segments per window not yet done
+    private final AtomicIntegerArray pending;
+
+    private record Window(Arena arena, MemorySegment data, long fileOffset) {
+    }
+
+    /**
+     * @param windowSize the window size, a multiple of {@code segmentSize}
+     */
+    WindowedChunkSource(List<FileChannel> files, int segmentSize, long windowSize) throws IOException {
+        this.files = files.toArray(FileChannel[]::new);
+        this.fileSizes = new long[this.files.length];
+        this.fileStarts = new long[this.files.length];
+        this.segmentSize = segmentSize;
+        this.windowSize = windowSize;
+        long position = 0;
+        for (int i = 0; i < this.files.length; i++) {
+            fileSizes[i] = this.files[i].size();
+            fileStarts[i] = position;
+            position += Math.ceilDiv(fileSizes[i], windowSize) * windowSize;
+        }
+        this.totalSize = position;
+
+        int windowCount = Math.toIntExact(totalSize / windowSize);
+        this.windows = new AtomicReferenceArray<>(windowCount);
+        this.pending = new AtomicIntegerArray(windowCount);
+        for (int i = 0; i < this.files.length; i++) {
+            for (long offset = 0; offset < fileSizes[i]; offset += windowSize) {
+                long bytes = Math.min(windowSize, fileSizes[i] - offset);
+                pending.set(windowIndex(fileStarts[i] + offset), Math.toIntExact(Math.ceilDiv(bytes, segmentSize)));
+            }
+        }
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+        while (true) {
+            long claimed = cursor.getAndAdd(segmentSize);
+            if (claimed >= totalSize) {
+                return null;
+            }
+
+            int file = Arrays.binarySearch(fileStarts, claimed);
+            if (file < 0) {
+                file = -file - 2;
+            }
+            long current = claimed - fileStarts[file];
+            if (current >= fileSizes[file]) {
+                // Alignment gap after the end of the file, not part of any window's count
+                continue;
+            }
+
+            Window window = window(windowIndex(claimed), file, current - current % windowSize);
+            MemorySegment data = window.data();
+            long local = current - window.fileOffset();
+            long start = current == 0 ? 0 : MappedChunkSource.nextNewLine(data, local) + 1;
+            long end = MappedChunkSource.nextNewLine(data, Math.min(data.byteSize() - 1, local + segmentSize)) + 1;
+            if (start >= end) {
+                done(windowIndex(claimed));
+                continue;
+            }
+            if (end + Chunk.PADDING > data.byteSize()) {
+                return MappedChunkSource.padded(data, start, end, claimed);
+            }
+            return new Chunk(data, start, end, claimed);
+        }
+    }
+
+    @Override
+    public void release(Chunk chunk) {
+        done(windowIndex(chunk.position()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < windows.length(); i++) {
+            Window window = windows.getAndSet(i, null);
+            if (window != null) {
+                window.arena().close();
+            }
+        }
+        for (FileChannel file : files) {
+            file.close();
+        }
+    }
+
+    private int windowIndex(long position) {
+        return (int) (position / windowSize);
+    }
+
+    private Window window(int index, int file, long fileOffset) throws IOException {
+        Window window = windows.get(index);
+        if (window != null) {
+            return window;
+        }
+        synchronized (this) {
+            window = windows.get(index);
+            if (window == null) {
+                long length = Math.min(fileSizes[file] - fileOffset, windowSize + LINE_OVERLAP);
+                Arena arena = Arena.ofShared();
+                window = new Window(arena, files[file].map(FileChannel.MapMode.READ_ONLY, fileOffset, length, arena), fileOffset);
+                windows.set(index, window);
+            }
+            return window;
+        }
+    }
+
+    private void done(int index) {
+        if (pending.decrementAndGet(index) == 0) {
+            windows.getAndSet(index, null).arena().close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Prepares the inputs of {@code test_engine.sh} which the usual command line tools cannot produce. Launched from
+ * source, against the engine jar:
+ *
+ * <pre>
+ * java --class-path target/average-1.0.0-SNAPSHOT.jar src/test/java/dev/morling/onebrc/engine/Fixtures.java \
+ *     crc32c|bgzip|serve ...
+ * </pre>
+ * <ul>
+ * <li>{@code crc32c <file> ...}: prints a {@code <hex checksum> <file name>} line per file, as read by
+ * {@code --checksums}</li>
+ * <li>{@code bgzip <file> <output> <block size>}: compresses a file with {@link BlockGzipOutputStream}, writing its
+ * index next to the output</li>
+ * <li>{@code serve <port file>}: serves the files below the working directory over HTTP with range support, standing
+ * in for an object store, until killed; the port is written to the given file once the server accepts requests. The
+ * first segment of the path selects how the server misbehaves, see {@link Fault}, e.g.
+ * {@code http://localhost:<port>/flaky/measurements.txt}</li>
+ * </ul>
+ */
+public final class Fixtures {
+
+    /**
+     * How the server answers a range request.
+     */
+    enum Fault {
+        /**
+         * Serves the range.
+         */
+        NONE,
+
+        /**
+         * Fails the first request for a range with a server error, and drops the connection on the second one.
+         */
+        FLAKY,
+
+        /**
+         * Fails all requests with a server error.
+         */
+        BROKEN,
+
+        /**
+         * Serves the whole file, as a server without range support.
+         */
+        NO_RANGES,
+
+        /**
+         * Serves the range without {@code Content-Range} header.
+         */
+        NO_CONTENT_RANGE,
+
+        /**
+         * Serves the range with a {@code Content-Range} header which does not state the size of the file.
+         */
+        BAD_CONTENT_RANGE,
+
+        /**
+         * Serves the range starting one byte late, except for the first byte of the file.
+         */
+        WRONG_RANGE
+    }
+
+    // Requests per file, fault and range so far
+    private static final Map<String, Integer> ATTEMPTS = new ConcurrentHashMap<>();
+
+    private Fixtures() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        switch (args.length > 0 ? args[0] : "") {
+            case "crc32c" -> {
+                for (int i = 1; i < args.length; i++) {
+                    CRC32C crc = new CRC32C();
+                    crc.update(Files.readAllBytes(Path.of(args[i])));
+                    System.out.println(Long.toHexString(crc.getValue()) + " " + args[i]);
+                }
+            }
+            case "bgzip" -> {
+                try (OutputStream output = new BlockGzipOutputStream(Path.of(args[2]), Integer.parseInt(args[3]))) {
+                    Files.copy(Path.of(args[1]), output);
+                }
+            }
+            case "serve" -> {
+                HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+                server.createContext("/", Fixtures::serve);
+                server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+                server.start();
+                Path portFile = Path.of(args[1]);
+                Path written = portFile.resolveSibling(portFile.getFileName() + ".tmp");
+                Files.writeString(written, Integer.toString(server.getAddress().getPort()));
+                Files.move(written, portFile);
+            }
+            default -> {
+                System.err.println("Usage: Fixtures crc32c|bgzip|serve ...");
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String[] path = exchange.getRequestURI().getPath().substring(1).split("/", 2);
+            Fault fault = Fault.valueOf(path[0].toUpperCase().replace('-', '_'));
+            byte[] file = Files.readAllBytes(Path.of(path[1]));
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int attempt = ATTEMPTS.merge(exchange.getRequestURI() + " " + range, 1, Integer::sum);
+            if (fault == Fault.BROKEN || (fault == Fault.FLAKY && attempt == 1)) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            if (fault == Fault.FLAKY && attempt == 2) {
+                // Closing the exchange without response drops the connection
+                return;
+            }
+            if (range == null || fault == Fault.NO_RANGES) {
+                exchange.sendResponseHeaders(200, file.length);
+                exchange.getResponseBody().write(file);
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int first = Integer.parseInt(bounds[0]);
+            if (first >= file.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + file.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            int last = Math.min(Integer.parseInt(bounds[1]), file.length - 1);
+            int from = fault == Fault.WRONG_RANGE && first > 0 ? first + 1 : first;
+            int to = fault == Fault.WRONG_RANGE && first > 0 ? Math.min(last + 1, file.length - 1) : last;
+            if (fault == Fault.BAD_CONTENT_RANGE) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/unknown");
+            }
+            else if (fault != Fault.NO_CONTENT_RANGE) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + file.length);
+            }
+            exchange.sendResponseHeaders(206, to - from + 1);
+            exchange.getResponseBody().write(file, from, to - from + 1);
+        }
+    }
+}
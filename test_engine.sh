@@ -0,0 +1,210 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+set -euo pipefail
+
+DEFAULT_INPUT="src/test/resources/samples/*.txt"
+INPUT=${1:-$DEFAULT_INPUT}
+
+if [ "$#" -gt 1 ] || [ "$INPUT" = "-h" ]; then
+  echo "Usage: ./test_engine.sh [input file pattern]"
+  echo
+  echo "For each test sample matching <input file pattern> (default '$DEFAULT_INPUT')"
+  echo "runs CalculateAverage_engine with each of its parsers, I/O modes, input sources and"
+  echo "aggregation strategies, and diffs the result with the expected output."
+  echo "Requires a build of the jar, e.g. with ./mvnw clean verify."
+  exit 1
+fi
+
+JAR=target/average-1.0.0-SNAPSHOT.jar
+JAVA_OPTS="--enable-preview --enable-native-access=ALL-UNNAMED --add-modules=jdk.incubator.vector"
+FIXTURES=src/test/java/dev/morling/onebrc/engine/Fixtures.java
+
+if [ ! -f "$JAR" ]; then
+  echo "$JAR does not exist, build it first with ./mvnw clean verify" 1>&2
+  exit 1
+fi
+
+# Small segments, so that even the samples are split between several workers
+COMMON="--threads=4 --segment-kb=4"
+
+VARIANTS=(
+  ""
+  "--parser=SWAR"
+  "--parser=SWAR_SEGMENT"
+  "--parser=VECTOR"
+  "--parser=SCALAR"
+  "--no-unsafe"
+  "--io=mmap"
+  "--io=buffered"
+  "--io=async --queue-depth=2"
+  "--io=direct"
+  "--io=auto"
+  "--window-mb=1"
+  "--map=populate,sequential,huge_pages"
+  "--release-early"
+  "--prefetch-mb=1"
+  "--prefetch-mb=1,willneed"
+  "--shared-table=20000"
+  "--shared-table=3"
+  "--spill-mb=1,4"
+  "--fast-exit"
+)
+
+FAILED=0
+TMP=$(mktemp -d)
+SERVER=""
+trap 'if [ -n "$SERVER" ]; then kill $SERVER; fi; rm -rf "$TMP"' EXIT
+
+engine() {
+  java $JAVA_OPTS --class-path $JAR dev.morling.onebrc.CalculateAverage_engine $COMMON "$@" 2>"$TMP/stderr"
+}
+
+fixtures() {
+  java --class-path $JAR $FIXTURES "$@"
+}
+
+# Diffs the output of the given command with the expected output of the sample
+check() {
+  local description=$1 expected=$2
+  shift 2
+  if ! diff --color=always <("$@" | ./tocsv.sh) <(./tocsv.sh < "$expected") >"$TMP/diff"; then
+    echo "FAIL $description"
+    cat "$TMP/diff" "$TMP/stderr"
+    FAILED=1
+  fi
+}
+
+# Checks that the given command fails with the given message
+check_failure() {
+  local description=$1 message=$2
+  shift 2
+  if "$@" > /dev/null; then
+    echo "FAIL $description did not fail"
+    FAILED=1
+  elif ! grep -q "$message" "$TMP/stderr"; then
+    echo "FAIL $description did not fail with '$message'"
+    cat "$TMP/stderr"
+    FAILED=1
+  fi
+}
+
+# Lists a sample in three parts, for the multi-file and incremental runs
+split_sample() {
+  local sample=$1 lines
+  lines=$(wc -l < "$sample")
+  sed -n "1,$((lines / 3))p" "$sample" > "$TMP/part-1.txt"
+  sed -n "$((lines / 3 + 1)),$((2 * (lines / 3)))p" "$sample" > "$TMP/part-2.txt"
+  sed -n "$((2 * (lines / 3) + 1)),\$p" "$sample" > "$TMP/part-3.txt"
+}
+
+# Aggregates the sample in three increments, each appended to the file after the previous run
+incrementally() {
+  local sample=$1
+  rm -f "$TMP/growing.txt" "$TMP/checkpoint"
+  for part in "$TMP"/part-*.txt; do
+    cat "$part" >> "$TMP/growing.txt"
+    engine --checkpoint="$TMP/checkpoint" "$TMP/growing.txt" > "$TMP/increment"
+  done
+  cat "$TMP/increment"
+}
+
+# Aggregates the sample twice with the same dictionary, once creating and once reading it
+with_dictionary() {
+  local sample=$1
+  rm -f "$TMP/dictionary"
+  engine --dictionary="$TMP/dictionary" "$sample" > /dev/null
+  engine --dictionary="$TMP/dictionary" "$sample"
+}
+
+# Watches a spool directory until the sample landed there, then removes the directory to end the run
+watching() {
+  local sample=$1
+  rm -rf "$TMP/spool" "$TMP/watched"
+  mkdir "$TMP/spool"
+  engine --watch "$TMP/spool" > "$TMP/watched" &
+  local watcher=$!
+  cp "$sample" "$TMP/sample.tmp"
+  mv "$TMP/sample.tmp" "$TMP/spool/sample.txt"
+  for _ in $(seq 100); do
+    if [ -s "$TMP/watched" ]; then
+      break
+    fi
+    sleep 0.1
+  done
+  rm -rf "$TMP/spool"
+  wait $watcher || true
+  head -n 1 "$TMP/watched"
+}
+
+# Serves the samples with range support, standing in for an object store
+# Started without the function, so that $! is the server itself rather than a subshell
+java --class-path $JAR $FIXTURES serve "$TMP/port" &
+SERVER=$!
+for _ in $(seq 100); do
+  if [ -f "$TMP/port" ]; then
+    break
+  fi
+  sleep 0.1
+done
+URL="http://localhost:$(cat "$TMP/port")"
+
+for sample in $(ls $INPUT); do
+  echo "Validating CalculateAverage_engine -- $sample"
+  expected=${sample%.txt}.out
+
+  for variant in "${VARIANTS[@]}"; do
+    check "engine $variant $sample" "$expected" engine $variant "$sample"
+  done
+
+  check "engine - < $sample" "$expected" engine - < "$sample"
+
+  split_sample "$sample"
+  check "engine part-*.txt of $sample" "$expected" engine "$TMP/part-1.txt" "$TMP/part-2.txt" "$TMP/part-3.txt"
+  check "engine 'part-*.txt' of $sample" "$expected" engine "$TMP/part-*.txt"
+  check "engine --checkpoint= of $sample" "$expected" incrementally "$sample"
+
+  fixtures crc32c "$sample" > "$TMP/checksums"
+  check "engine --checksums= $sample" "$expected" engine --checksums="$TMP/checksums" "$sample"
+  echo "0 $sample" > "$TMP/checksums"
+  check_failure "engine --checksums= $sample with a wrong checksum" "Checksum mismatch" engine --checksums="$TMP/checksums" "$sample"
+
+  gzip -c "$sample" > "$TMP/sample.gz"
+  check "engine $sample.gz" "$expected" engine "$TMP/sample.gz"
+  fixtures bgzip "$sample" "$TMP/blocks.gz" 4096
+  check "engine block gzip $sample.gz" "$expected" engine "$TMP/blocks.gz"
+  cp "$TMP/sample.gz" "$TMP/blocks.gz"
+  check "engine block gzip $sample.gz with a stale index" "$expected" engine "$TMP/blocks.gz"
+  rm "$TMP/blocks.gz.idx"
+  check "engine block gzip $sample.gz without index" "$expected" engine "$TMP/blocks.gz"
+
+  check "engine $URL/none/$sample" "$expected" engine --queue-depth=4 "$URL/none/$sample"
+  check "engine $URL/flaky/$sample" "$expected" engine --queue-depth=4 "$URL/flaky/$sample"
+
+  check "engine --dictionary= $sample" "$expected" with_dictionary "$sample"
+  check "engine --watch $sample" "$expected" watching "$sample"
+done
+
+# Failures of the range requests, for a sample of several segments
+sample=src/test/resources/samples/measurements-10000-unique-keys.txt
+check_failure "engine $URL/broken/$sample" "status 503" engine "$URL/broken/$sample"
+check_failure "engine $URL/no-ranges/$sample" "does not support range requests" engine "$URL/no-ranges/$sample"
+check_failure "engine $URL/no-content-range/$sample" "No content range" engine "$URL/no-content-range/$sample"
+check_failure "engine $URL/bad-content-range/$sample" "Cannot determine the size" engine "$URL/bad-content-range/$sample"
+check_failure "engine $URL/wrong-range/$sample" "Expected content range" engine "$URL/wrong-range/$sample"
+
+exit $FAILED